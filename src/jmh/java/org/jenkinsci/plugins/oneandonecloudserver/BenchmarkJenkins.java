@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Jenkins instance for benchmarks, started once per forked JVM.
+ *
+ * Labels, clouds and the registries of this plugin need a running Jenkins, so the benchmarks use the one of the
+ * test harness, outside of JUnit. Its periodic work is stopped, so that e.g. the {@link NodeCountIndex.SelfCheck}
+ * doesn't reset the synthetic fleets in the middle of a trial, and nothing lists servers with the dummy API tokens.
+ */
+final class BenchmarkJenkins {
+
+    // kept, so the level isn't lost when the logger is garbage collected
+    private static final Logger PLUGIN_LOGGER = Logger.getLogger(BenchmarkJenkins.class.getPackage().getName());
+
+    private static JenkinsRule rule;
+
+    private BenchmarkJenkins() {
+        throw new AssertionError();
+    }
+
+    static synchronized Jenkins get() throws Throwable {
+        if (rule == null) {
+            JenkinsRule r = new JenkinsRule();
+            // sets the test description, which the rule reads when it starts Jenkins
+            r.apply(new Statement() {
+                @Override
+                public void evaluate() {
+                }
+            }, Description.createTestDescription(BenchmarkJenkins.class, "benchmark"));
+            r.before();
+            rule = r;
+
+            // cancels every scheduled periodic work, the timer is recreated for anything scheduled later
+            Timer.shutdown();
+
+            // the cap checks log at INFO, which would otherwise be measured as well
+            PLUGIN_LOGGER.setLevel(Level.WARNING);
+        }
+        return rule.jenkins;
+    }
+}
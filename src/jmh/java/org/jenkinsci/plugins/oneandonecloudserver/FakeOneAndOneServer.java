@@ -0,0 +1,617 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for the 1&amp;1 REST API, to run the plugin against without a 1&amp;1 account, e.g. by
+ * {@link ProvisioningLoadHarness}. Point an API client at it with {@code OneAndOneApi.setUrl(getUrl())}.
+ *
+ * It serves the servers, their status actions, the fixed instance sizes, the server appliances and images, keeping
+ * everything in memory. Servers go through the states of the real API, each transient state lasting a configurable
+ * time: a new server is {@code DEPLOYING} before it is {@code POWERED_ON}, a deleted one {@code REMOVING} before it
+ * is gone. Like the real API, it refuses to delete servers which are still deploying.
+ *
+ * Every request can be delayed, and a share of them fails with HTTP 500 or is throttled with HTTP 429. Instance caps
+ * can be watched by server name prefix: each server created beyond the cap of a prefix counts as a violation.
+ */
+final class FakeOneAndOneServer {
+
+    static final String FIXED_INSTANCE_SIZE_ID = "65929629F35BBFBA63022008F773F3EB";
+    static final String APPLIANCE_ID = "B5F778B85C041347BCDCFC3172AB3F3C";
+    /**
+     * The IP of every server, from TEST-NET-1, so that nothing answers the SSH probes. Loopback would reach the SSH
+     * daemon of the machine running the fake.
+     */
+    static final String SERVER_IP = "192.0.2.1";
+
+    private static final String API_HOST = "127.0.0.1";
+    private static final String API_PREFIX = "/v1";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, FakeServer> servers = new ConcurrentHashMap<String, FakeServer>();
+    private final ConcurrentMap<String, FakeImage> images = new ConcurrentHashMap<String, FakeImage>();
+    private final ConcurrentMap<String, Integer> caps = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, AtomicInteger> capViolations = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+
+    private volatile long deployMillis = TimeUnit.SECONDS.toMillis(30);
+    private volatile long powerMillis = TimeUnit.SECONDS.toMillis(10);
+    private volatile long removeMillis = TimeUnit.SECONDS.toMillis(10);
+    private volatile long imageMillis = TimeUnit.MINUTES.toMillis(1);
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+
+    private FakeOneAndOneServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     */
+    static FakeOneAndOneServer start() throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(API_HOST, 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Fake 1&1 API #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        httpServer.setExecutor(executor);
+
+        final FakeOneAndOneServer fake = new FakeOneAndOneServer(httpServer, executor);
+        httpServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                fake.handle(exchange);
+            }
+        });
+        httpServer.start();
+        return fake;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the base URL of the API, to be set on the API client
+     */
+    String getUrl() {
+        return "http://" + API_HOST + ":" + server.getAddress().getPort() + API_PREFIX;
+    }
+
+    /**
+     * Sets how long a new server deploys before it is powered on.
+     */
+    FakeOneAndOneServer setDeployMillis(long deployMillis) {
+        this.deployMillis = deployMillis;
+        return this;
+    }
+
+    /**
+     * Sets how long a server takes to power on or off.
+     */
+    FakeOneAndOneServer setPowerMillis(long powerMillis) {
+        this.powerMillis = powerMillis;
+        return this;
+    }
+
+    /**
+     * Sets how long a deleted server is removing before it is gone.
+     */
+    FakeOneAndOneServer setRemoveMillis(long removeMillis) {
+        this.removeMillis = removeMillis;
+        return this;
+    }
+
+    FakeOneAndOneServer setImageMillis(long imageMillis) {
+        this.imageMillis = imageMillis;
+        return this;
+    }
+
+    /**
+     * Sets the delay of every response.
+     */
+    FakeOneAndOneServer setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Sets the share of requests failing with HTTP 500, from 0 to 1.
+     */
+    FakeOneAndOneServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Sets the share of requests throttled with HTTP 429, from 0 to 1.
+     */
+    FakeOneAndOneServer setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    /**
+     * Watches the number of servers whose name starts with the given prefix, e.g. {@code jenkins-<cloud>-}.
+     */
+    void watchCap(String namePrefix, int instanceCap) {
+        caps.put(namePrefix, instanceCap);
+        capViolations.putIfAbsent(namePrefix, new AtomicInteger());
+    }
+
+    /**
+     * @return the number of servers created beyond the cap of each watched prefix
+     */
+    Map<String, Integer> getCapViolations() {
+        Map<String, Integer> violations = new TreeMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> e : capViolations.entrySet()) {
+            violations.put(e.getKey(), e.getValue().get());
+        }
+        return violations;
+    }
+
+    /**
+     * @return the number of requests per method and path, with IDs replaced by {@code {id}}
+     */
+    Map<String, Integer> getRequests() {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> e : requests.entrySet()) {
+            counts.put(e.getKey(), e.getValue().get());
+        }
+        return counts;
+    }
+
+    int getRequestCount() {
+        int count = 0;
+        for (AtomicInteger c : requests.values()) {
+            count += c.get();
+        }
+        return count;
+    }
+
+    int getCreatedCount() {
+        return created.get();
+    }
+
+    int getFailedCount() {
+        return failed.get();
+    }
+
+    int getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of servers whose name starts with the given prefix and which are in the given state
+     */
+    int countServers(String namePrefix, String state) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (FakeServer s : servers.values()) {
+            if (s.name.startsWith(namePrefix) && s.getState(now).equals(state)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith(API_PREFIX + "/")) {
+                path = path.substring(API_PREFIX.length());
+            }
+            String method = exchange.getRequestMethod();
+            String[] segments = path.substring(1).split("/");
+
+            count(method + " " + route(segments));
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            if (exchange.getRequestHeaders().getFirst("X-Token") == null) {
+                error(exchange, 401, "UNAUTHORIZED", "Missing X-TOKEN header");
+                return;
+            }
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < throttleRate) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                error(exchange, 429, "TOO_MANY_REQUESTS", "Too Many Requests");
+                return;
+            }
+            if (dice < throttleRate + errorRate) {
+                failed.incrementAndGet();
+                error(exchange, 500, "INTERNAL_SERVER_ERROR", "Injected failure");
+                return;
+            }
+
+            route(exchange, method, segments);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // the path with IDs replaced, for counting the requests per endpoint
+    private static String route(String[] segments) {
+        StringBuilder route = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) {
+            route.append('/').append(i == 1 && !segments[1].equals("fixed_instance_sizes") ? "{id}" : segments[i]);
+        }
+        return route.toString();
+    }
+
+    private void route(HttpExchange exchange, String method, String[] segments) throws IOException {
+        String resource = segments[0];
+        String id = segments.length > 1 ? segments[1] : null;
+
+        if (resource.equals("servers")) {
+            if (id == null) {
+                if (method.equals("GET")) {
+                    listServers(exchange);
+                    return;
+                } else if (method.equals("POST")) {
+                    createServer(exchange);
+                    return;
+                }
+            } else if (id.equals("fixed_instance_sizes") && method.equals("GET")) {
+                respond(exchange, 200, new JSONArray().element(fixedInstanceSize()));
+                return;
+            } else if (segments.length == 2 && method.equals("GET")) {
+                getServer(exchange, id);
+                return;
+            } else if (segments.length == 2 && method.equals("DELETE")) {
+                deleteServer(exchange, id);
+                return;
+            } else if (segments.length == 4 && segments[2].equals("status") && method.equals("PUT")) {
+                updateServerStatus(exchange, id);
+                return;
+            }
+        } else if (resource.equals("server_appliances") && id == null && method.equals("GET")) {
+            respond(exchange, 200, new JSONArray().element(appliance()));
+            return;
+        } else if (resource.equals("images")) {
+            if (id == null && method.equals("POST")) {
+                createImage(exchange);
+                return;
+            } else if (id != null && method.equals("GET")) {
+                getImage(exchange, id);
+                return;
+            } else if (id != null && method.equals("DELETE")) {
+                deleteImage(exchange, id);
+                return;
+            }
+        }
+
+        error(exchange, 404, "NOT_FOUND", "No such resource: " + method + " " + exchange.getRequestURI().getPath());
+    }
+
+    private void listServers(HttpExchange exchange) throws IOException {
+        long now = System.currentTimeMillis();
+        JSONArray list = new JSONArray();
+        for (FakeServer s : servers.values()) {
+            if (s.isGone(now)) {
+                servers.remove(s.id, s);
+            } else {
+                list.element(s.toJson(now));
+            }
+        }
+        respond(exchange, 200, list);
+    }
+
+    private void createServer(HttpExchange exchange) throws IOException {
+        JSONObject request = JSONObject.fromObject(readBody(exchange));
+        String name = request.optString("name");
+        JSONObject hardware = request.optJSONObject("hardware");
+        String fixedInstanceSizeId = hardware == null ? null : hardware.optString("fixed_instance_size_id", null);
+        String applianceId = request.optString("appliance_id", null);
+        if (name == null || name.isEmpty() || fixedInstanceSizeId == null || applianceId == null) {
+            error(exchange, 400, "BAD_REQUEST", "name, hardware.fixed_instance_size_id and appliance_id are required");
+            return;
+        }
+
+        FakeServer s = new FakeServer(UUID.randomUUID().toString().replace("-", "").toUpperCase(), name,
+                fixedInstanceSizeId, applianceId, System.currentTimeMillis(), deployMillis);
+        // counted and added atomically, so that concurrent creations are checked against each other
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Integer> cap : caps.entrySet()) {
+                if (name.startsWith(cap.getKey()) && countLive(cap.getKey(), now) >= cap.getValue()) {
+                    capViolations.get(cap.getKey()).incrementAndGet();
+                }
+            }
+            servers.put(s.id, s);
+        }
+        created.incrementAndGet();
+
+        respond(exchange, 202, s.toJson(System.currentTimeMillis()).element("first_password", "fake"));
+    }
+
+    private int countLive(String namePrefix, long now) {
+        int count = 0;
+        for (FakeServer s : servers.values()) {
+            if (s.name.startsWith(namePrefix) && !s.getState(now).equals("REMOVING") && !s.isGone(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void getServer(HttpExchange exchange, String id) throws IOException {
+        long now = System.currentTimeMillis();
+        FakeServer s = servers.get(id);
+        if (s == null || s.isGone(now)) {
+            error(exchange, 404, "NOT_FOUND", "Server " + id + " not found");
+            return;
+        }
+        respond(exchange, 200, s.toJson(now));
+    }
+
+    private void deleteServer(HttpExchange exchange, String id) throws IOException {
+        long now = System.currentTimeMillis();
+        FakeServer s = servers.get(id);
+        if (s == null || s.isGone(now)) {
+            error(exchange, 404, "NOT_FOUND", "Server " + id + " not found");
+            return;
+        }
+        if (!s.transition(now, "REMOVING", removeMillis, null)) {
+            error(exchange, 400, "BAD_REQUEST", "Server " + id + " is " + s.getState(now) + ", try again later");
+            return;
+        }
+        respond(exchange, 202, s.toJson(now));
+    }
+
+    private void updateServerStatus(HttpExchange exchange, String id) throws IOException {
+        long now = System.currentTimeMillis();
+        FakeServer s = servers.get(id);
+        if (s == null || s.isGone(now)) {
+            error(exchange, 404, "NOT_FOUND", "Server " + id + " not found");
+            return;
+        }
+
+        String action = JSONObject.fromObject(readBody(exchange)).optString("action", "");
+        boolean accepted;
+        if (action.equals("POWER_ON")) {
+            accepted = s.transition(now, "POWERING_ON", powerMillis, "POWERED_ON");
+        } else if (action.equals("POWER_OFF")) {
+            accepted = s.transition(now, "POWERING_OFF", powerMillis, "POWERED_OFF");
+        } else {
+            error(exchange, 400, "BAD_REQUEST", "Unsupported action " + action);
+            return;
+        }
+        if (!accepted) {
+            error(exchange, 400, "BAD_REQUEST", "Server " + id + " is " + s.getState(now) + ", try again later");
+            return;
+        }
+        respond(exchange, 202, s.toJson(now));
+    }
+
+    private void createImage(HttpExchange exchange) throws IOException {
+        JSONObject request = JSONObject.fromObject(readBody(exchange));
+        String serverId = request.optString("server_id", null);
+        if (serverId == null || !servers.containsKey(serverId)) {
+            error(exchange, 400, "BAD_REQUEST", "Server " + serverId + " not found");
+            return;
+        }
+
+        FakeImage image = new FakeImage(UUID.randomUUID().toString().replace("-", "").toUpperCase(),
+                request.optString("name"), System.currentTimeMillis() + imageMillis);
+        images.put(image.id, image);
+        respond(exchange, 202, image.toJson(System.currentTimeMillis()));
+    }
+
+    private void getImage(HttpExchange exchange, String id) throws IOException {
+        FakeImage image = images.get(id);
+        if (image == null) {
+            error(exchange, 404, "NOT_FOUND", "Image " + id + " not found");
+            return;
+        }
+        respond(exchange, 200, image.toJson(System.currentTimeMillis()));
+    }
+
+    private void deleteImage(HttpExchange exchange, String id) throws IOException {
+        FakeImage image = images.remove(id);
+        if (image == null) {
+            error(exchange, 404, "NOT_FOUND", "Image " + id + " not found");
+            return;
+        }
+        respond(exchange, 202, image.toJson(System.currentTimeMillis()));
+    }
+
+    private static JSONObject fixedInstanceSize() {
+        return new JSONObject()
+                .element("id", FIXED_INSTANCE_SIZE_ID)
+                .element("name", "S")
+                .element("hardware", new JSONObject()
+                        .element("vcore", 1)
+                        .element("cores_per_processor", 1)
+                        .element("ram", 1)
+                        .element("hdds", new JSONArray().element(new JSONObject()
+                                .element("size", 40)
+                                .element("is_main", true))));
+    }
+
+    private static JSONObject appliance() {
+        return new JSONObject()
+                .element("id", APPLIANCE_ID)
+                .element("name", "ubuntu1604-64std")
+                .element("os_family", "Linux")
+                .element("os", "Ubuntu")
+                .element("os_version", "Ubuntu16.04")
+                .element("os_architecture", 64)
+                .element("os_image_type", "Standard")
+                .element("type", "IMAGE")
+                .element("min_hdd_size", 20);
+    }
+
+    private void count(String route) {
+        AtomicInteger counter = requests.get(route);
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            counter = requests.putIfAbsent(route, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, n);
+        }
+        return body.toString("UTF-8");
+    }
+
+    private static void error(HttpExchange exchange, int status, String type, String message) throws IOException {
+        respond(exchange, status, new JSONObject().element("type", type).element("message", message));
+    }
+
+    private static void respond(HttpExchange exchange, int status, Object json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String formatDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static final class FakeServer {
+        private final String id;
+        private final String name;
+        private final String fixedInstanceSizeId;
+        private final String applianceId;
+        private final long createdAt;
+        private final String ipId = UUID.randomUUID().toString().replace("-", "").toUpperCase();
+
+        // guarded by this
+        private String state = "DEPLOYING";
+        private long transientUntil;
+        // the state after the transient one, or null if the server is gone then
+        private String nextState = "POWERED_ON";
+
+        FakeServer(String id, String name, String fixedInstanceSizeId, String applianceId, long createdAt,
+                   long deployMillis) {
+            this.id = id;
+            this.name = name;
+            this.fixedInstanceSizeId = fixedInstanceSizeId;
+            this.applianceId = applianceId;
+            this.createdAt = createdAt;
+            this.transientUntil = createdAt + deployMillis;
+        }
+
+        synchronized String getState(long now) {
+            if (transientUntil != 0 && now >= transientUntil && nextState != null) {
+                state = nextState;
+                transientUntil = 0;
+            }
+            return state;
+        }
+
+        synchronized boolean isGone(long now) {
+            return nextState == null && now >= transientUntil;
+        }
+
+        /**
+         * Enters the given transient state, unless the server is in a transient state already.
+         * @param next the state after the transient one, or {@code null} if the server is gone then
+         */
+        synchronized boolean transition(long now, String transientState, long millis, String next) {
+            getState(now);
+            if (transientUntil != 0) {
+                return false;
+            }
+            state = transientState;
+            transientUntil = now + millis;
+            nextState = next;
+            return true;
+        }
+
+        JSONObject toJson(long now) {
+            return new JSONObject()
+                    .element("id", id)
+                    .element("name", name)
+                    .element("status", new JSONObject().element("state", getState(now)))
+                    .element("creation_date", formatDate(createdAt))
+                    .element("hardware", new JSONObject()
+                            .element("fixed_instance_size_id", fixedInstanceSizeId)
+                            .element("vcore", 1)
+                            .element("cores_per_processor", 1)
+                            .element("ram", 1))
+                    .element("image", new JSONObject().element("id", applianceId))
+                    .element("ips", new JSONArray().element(new JSONObject()
+                            .element("id", ipId)
+                            .element("ip", SERVER_IP)
+                            .element("type", "IPV4")));
+        }
+    }
+
+    private static final class FakeImage {
+        private final String id;
+        private final String name;
+        private final long activeAt;
+
+        FakeImage(String id, String name, long activeAt) {
+            this.id = id;
+            this.name = name;
+            this.activeAt = activeAt;
+        }
+
+        JSONObject toJson(long now) {
+            return new JSONObject()
+                    .element("id", id)
+                    .element("name", name)
+                    .element("state", now >= activeAt ? "ACTIVE" : "CONFIGURING");
+        }
+    }
+}
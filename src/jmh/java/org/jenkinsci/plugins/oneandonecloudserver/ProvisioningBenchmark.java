@@ -0,0 +1,163 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.oneandone.rest.POJO.Response.Status;
+import com.oneandone.rest.POJO.Response.Types;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The checks the {@link hudson.slaves.NodeProvisioner} runs for every label on every tick, against synthetic fleets.
+ *
+ * The fleet has {@code servers} nodes, which are also listed by the {@link ServerInventory}, spread over all
+ * templates but the last one. Those templates are at their instance cap, so every lookup of a template below its
+ * cap has to check all of them before it finds the last one. If there are fewer servers than templates, the
+ * templates without a server don't match the label.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProvisioningBenchmark {
+
+    private static final String CLOUD_NAME = "bench";
+    private static final String LABEL = "fleet";
+
+    @State(Scope.Benchmark)
+    public static class Fleet {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int servers;
+
+        @Param({"10", "50"})
+        public int templates;
+
+        Cloud cloud;
+        Label label;
+        Label lastTemplateLabel;
+        ServerInventory inventory;
+        List<ServerResponse> listing;
+        private final List<String> nodeNames = new ArrayList<String>();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            Jenkins jenkins = BenchmarkJenkins.get();
+
+            int full = Math.min(templates - 1, servers);
+            int[] counts = new int[templates];
+            for (int i = 0; i < servers; i++) {
+                counts[i % full]++;
+            }
+
+            List<SlaveTemplate> slaveTemplates = new ArrayList<SlaveTemplate>();
+            for (int i = 0; i < templates; i++) {
+                boolean last = i == templates - 1;
+                String labels = (i < full || last ? LABEL + " " : "") + "t" + i;
+                int instanceCap = last ? servers + 1 : Math.max(1, counts[i]);
+                slaveTemplates.add(new SlaveTemplate("t" + i, "appliance", "size", "root", "/jenkins", 22, "10", "1",
+                        labels, false, String.valueOf(instanceCap), null, null, null, null, false, null, null, null));
+            }
+            cloud = new Cloud(CLOUD_NAME, "token", null, null, String.valueOf(2 * servers + templates), null, null,
+                    null, null, null, slaveTemplates);
+            jenkins.clouds.add(cloud);
+
+            listing = new ArrayList<ServerResponse>();
+            for (int i = 0; i < templates; i++) {
+                for (int j = 0; j < counts[i]; j++) {
+                    String name = ServerName.generateServerName(CLOUD_NAME, "t" + i);
+                    NodeCountIndex.add(name);
+                    nodeNames.add(name);
+                    listing.add(server(name));
+                }
+            }
+            // servers of other clouds on the same account
+            for (int i = 0; i < servers; i++) {
+                listing.add(server(ServerName.generateServerName("other", "t" + (i % templates))));
+            }
+            inventory = new ServerInventory(listing);
+
+            label = jenkins.getLabel(LABEL);
+            lastTemplateLabel = jenkins.getLabel("t" + (templates - 1));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            for (String name : nodeNames) {
+                NodeCountIndex.remove(name);
+            }
+            BenchmarkJenkins.get().clouds.remove(cloud);
+        }
+
+        private static ServerResponse server(String name) {
+            Status status = new Status();
+            status.setState(Types.ServerState.POWERED_ON);
+            ServerResponse server = new ServerResponse();
+            server.setId(UUID.randomUUID().toString());
+            server.setName(name);
+            server.setStatus(status);
+            return server;
+        }
+    }
+
+    @Benchmark
+    public boolean canProvision(Fleet fleet) {
+        return fleet.cloud.canProvision(fleet.label);
+    }
+
+    @Benchmark
+    public List<SlaveTemplate> getTemplatesOfAll(Fleet fleet) {
+        return fleet.cloud.getTemplates(fleet.label);
+    }
+
+    @Benchmark
+    public List<SlaveTemplate> getTemplatesOfOne(Fleet fleet) {
+        return fleet.cloud.getTemplates(fleet.lastTemplateLabel);
+    }
+
+    @Benchmark
+    public SlaveTemplate getTemplateBelowInstanceCap(Fleet fleet) {
+        return fleet.cloud.getTemplateBelowInstanceCap(fleet.inventory, fleet.label);
+    }
+
+    @Benchmark
+    public SlaveTemplate getTemplateBelowInstanceCapLocal(Fleet fleet) {
+        return fleet.cloud.getTemplateBelowInstanceCapLocal(fleet.label);
+    }
+
+    @Benchmark
+    public boolean isInstanceCapReachedLocal(Fleet fleet) {
+        return fleet.cloud.isInstanceCapReachedLocal();
+    }
+
+    @Benchmark
+    public boolean isInstanceCapReachedRemote(Fleet fleet) {
+        return fleet.cloud.isInstanceCapReachedRemote(fleet.inventory);
+    }
+
+    /**
+     * Counting the servers of a fresh listing, which happens whenever the inventory expires.
+     */
+    @Benchmark
+    public ServerInventory buildInventory(Fleet fleet) {
+        return new ServerInventory(fleet.listing);
+    }
+}
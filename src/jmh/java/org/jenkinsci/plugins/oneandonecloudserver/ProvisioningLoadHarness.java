@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.model.Label;
+import hudson.slaves.NodeProvisioner;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives {@link Cloud#provision(Label, int)} with a burst of concurrent queue items against a
+ * {@link FakeOneAndOneServer}, and reports how long it took until the servers were powered on, how many API calls
+ * each server cost and whether any instance cap was exceeded.
+ *
+ * Each queue item asks the cloud for one executor, as the {@link NodeProvisioner} would, and asks again every
+ * {@link #TICK_MILLIS} until it gets a planned node. The fake gives every server an unroutable IP, so the launches
+ * don't get further than powered on servers waiting for SSH, which hold their reservations until the end of the run. The capacity is therefore reached
+ * when as many servers are powered on as the queue items and instance caps allow.
+ *
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec@load-harness -Dload.jvmArgs="-Ditems=500 ..."}, configured
+ * by these system properties: {@code items}, {@code templates}, {@code cloudCap}, {@code templateCap},
+ * {@code parallelCreations}, {@code deployMillis}, {@code latencyMillis}, {@code errorRate}, {@code throttleRate} and
+ * {@code timeoutSeconds}. The report is printed and written as JSON to {@code load.result}. The run fails if an
+ * instance cap was exceeded.
+ */
+public final class ProvisioningLoadHarness {
+
+    private static final String API_TOKEN = "load-harness";
+    private static final String CLOUD_NAME = "load";
+    private static final String LABEL = "load";
+    private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private ProvisioningLoadHarness() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int items = Integer.getInteger("items", 300);
+        int templates = Integer.getInteger("templates", 3);
+        int cloudCap = Integer.getInteger("cloudCap", 100);
+        int templateCap = Integer.getInteger("templateCap", 40);
+        int parallelCreations = Integer.getInteger("parallelCreations", 10);
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("timeoutSeconds", 600));
+        File result = new File(System.getProperty("load.result", "target/load-result.json"));
+
+        FakeOneAndOneServer fake = FakeOneAndOneServer.start()
+                .setDeployMillis(Long.getLong("deployMillis", TimeUnit.SECONDS.toMillis(30)))
+                .setLatencyMillis(Long.getLong("latencyMillis", 50))
+                .setErrorRate(Double.parseDouble(System.getProperty("errorRate", "0.02")))
+                .setThrottleRate(Double.parseDouble(System.getProperty("throttleRate", "0.05")));
+
+        Jenkins jenkins = BenchmarkJenkins.get();
+        // the client is shared per token, so every call of the cloud goes to the fake
+        OneAndOne.getApiClient(API_TOKEN).setUrl(fake.getUrl());
+
+        List<SlaveTemplate> slaveTemplates = new ArrayList<SlaveTemplate>();
+        for (int i = 0; i < templates; i++) {
+            slaveTemplates.add(new SlaveTemplate("t" + i, FakeOneAndOneServer.APPLIANCE_ID,
+                    FakeOneAndOneServer.FIXED_INSTANCE_SIZE_ID, "root", "/jenkins", 22, "10", "1", LABEL, false,
+                    String.valueOf(templateCap), null, null, null, null, false, null, null, null));
+            fake.watchCap("jenkins-" + CLOUD_NAME + "-t" + i + "-", templateCap);
+        }
+        Cloud cloud = new Cloud(CLOUD_NAME, API_TOKEN, null, null, String.valueOf(cloudCap), "30",
+                String.valueOf(parallelCreations), null, null, null, slaveTemplates);
+        jenkins.clouds.add(cloud);
+        fake.watchCap("jenkins-" + CLOUD_NAME + "-", cloudCap);
+
+        int capacity = Math.min(items, Math.min(cloudCap == 0 ? items : cloudCap, templates * templateCap));
+        Label label = jenkins.getLabel(LABEL);
+
+        System.out.println(String.format("Provisioning %d queue items, expecting %d servers", items, capacity));
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        AtomicInteger planned = new AtomicInteger();
+        ExecutorService queue = submitItems(cloud, label, items, deadline, planned);
+
+        long timeToCapacity = -1;
+        while (System.currentTimeMillis() < deadline) {
+            if (fake.countServers("jenkins-" + CLOUD_NAME + "-", "POWERED_ON") >= capacity) {
+                timeToCapacity = System.currentTimeMillis() - start;
+                break;
+            }
+            Thread.sleep(100);
+        }
+        queue.shutdownNow();
+
+        int poweredOn = fake.countServers("jenkins-" + CLOUD_NAME + "-", "POWERED_ON");
+        double callsPerServer = poweredOn == 0 ? 0 : (double) fake.getRequestCount() / poweredOn;
+        int violations = 0;
+        for (int v : fake.getCapViolations().values()) {
+            violations += v;
+        }
+
+        JSONObject report = new JSONObject()
+                .element("items", items)
+                .element("capacity", capacity)
+                .element("plannedNodes", planned.get())
+                .element("serversCreated", fake.getCreatedCount())
+                .element("serversPoweredOn", poweredOn)
+                .element("timeToCapacityMillis", timeToCapacity)
+                .element("apiCalls", fake.getRequestCount())
+                .element("apiCallsPerServer", callsPerServer)
+                .element("injectedErrors", fake.getFailedCount())
+                .element("throttled", fake.getThrottledCount())
+                .element("capViolations", violations)
+                .element("capViolationsByPrefix", fake.getCapViolations())
+                .element("apiCallsByEndpoint", fake.getRequests());
+
+        System.out.println(timeToCapacity < 0
+                ? String.format("Capacity not reached within %d s", timeoutMillis / 1000)
+                : String.format("Time to capacity:     %.1f s", timeToCapacity / 1000.0));
+        System.out.println(String.format("Servers created:      %d, powered on: %d", fake.getCreatedCount(), poweredOn));
+        System.out.println(String.format("API calls per server: %.1f (%d calls, %d failed, %d throttled)",
+                callsPerServer, fake.getRequestCount(), fake.getFailedCount(), fake.getThrottledCount()));
+        System.out.println(String.format("Cap violations:       %d", violations));
+        for (Map.Entry<String, Integer> e : fake.getRequests().entrySet()) {
+            System.out.println(String.format("  %-40s %d", e.getKey(), e.getValue()));
+        }
+
+        File dir = result.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Failed to create " + dir);
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(result), StandardCharsets.UTF_8);
+        try {
+            out.write(report.toString());
+        } finally {
+            out.close();
+        }
+
+        fake.stop();
+        // the launches are still waiting for SSH, and Jenkins is still running
+        System.exit(violations == 0 ? 0 : 1);
+    }
+
+    /**
+     * Starts the queue items at the same time, each on its own thread.
+     */
+    private static ExecutorService submitItems(final Cloud cloud, final Label label, int items, final long deadline,
+                                               final AtomicInteger planned) {
+        ExecutorService queue = Executors.newFixedThreadPool(items);
+        final CountDownLatch go = new CountDownLatch(1);
+        for (int i = 0; i < items; i++) {
+            queue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        while (System.currentTimeMillis() < deadline) {
+                            Collection<NodeProvisioner.PlannedNode> nodes = cloud.provision(label, 1);
+                            if (!nodes.isEmpty()) {
+                                planned.addAndGet(nodes.size());
+                                return;
+                            }
+                            Thread.sleep(TICK_MILLIS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        go.countDown();
+        return queue;
+    }
+}
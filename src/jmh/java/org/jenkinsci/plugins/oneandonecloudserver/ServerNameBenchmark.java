@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matching server names against a cloud and template, as done in loops over all servers of the account, compared
+ * to the regular expression {@link ServerName} used before its scanner.
+ *
+ * A third of the names belongs to the matched template, a third to other templates of the cloud and the rest to
+ * other clouds or isn't generated by this plugin at all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerNameBenchmark {
+
+    private static final Pattern SERVER_PATTERN = Pattern.compile("^jenkins-([a-zA-Z0-9\\.]+)-([a-zA-Z0-9\\.]+)-"
+            + "\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}$");
+
+    private static final String CLOUD_NAME = "bench";
+    private static final String SLAVE_NAME = "t0";
+
+    @State(Scope.Benchmark)
+    public static class Names {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int servers;
+
+        String[] names;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            names = new String[servers];
+            for (int i = 0; i < servers; i++) {
+                switch (i % 6) {
+                    case 0:
+                    case 1:
+                        names[i] = ServerName.generateServerName(CLOUD_NAME, SLAVE_NAME);
+                        break;
+                    case 2:
+                    case 3:
+                        names[i] = ServerName.generateServerName(CLOUD_NAME, "t" + i);
+                        break;
+                    case 4:
+                        names[i] = ServerName.generateServerName("other", SLAVE_NAME);
+                        break;
+                    default:
+                        names[i] = "webserver-" + i;
+                        break;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int isServerInstanceOfCloud(Names names) {
+        int count = 0;
+        for (String name : names.names) {
+            if (ServerName.isServerInstanceOfCloud(name, CLOUD_NAME)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isServerInstanceOfCloudRegex(Names names) {
+        int count = 0;
+        for (String name : names.names) {
+            Matcher m = SERVER_PATTERN.matcher(name);
+            if (m.matches() && m.group(1).equals(CLOUD_NAME)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isServerInstanceOfSlave(Names names) {
+        int count = 0;
+        for (String name : names.names) {
+            if (ServerName.isServerInstanceOfSlave(name, CLOUD_NAME, SLAVE_NAME)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isServerInstanceOfSlaveRegex(Names names) {
+        int count = 0;
+        for (String name : names.names) {
+            Matcher m = SERVER_PATTERN.matcher(name);
+            if (m.matches() && m.group(1).equals(CLOUD_NAME) && m.group(2).equals(SLAVE_NAME)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Extracting the names, as the node and server counts do, served from the cache of parsed names.
+     */
+    @Benchmark
+    public int getSlaveName(Names names) {
+        int count = 0;
+        for (String name : names.names) {
+            if (SLAVE_NAME.equals(ServerName.getSlaveName(name))) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.trilead.ssh2.Connection;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A file the agent needs on a server, like {@code slave.jar}, cached on the master together with its SHA-256 hash.
+ *
+ * Before uploading, the hash of the file on the server is compared with the cached one, so reconnects to a server
+ * which has the file already skip the transfer. Uploads stream from the cached file instead of copying it to the heap.
+ */
+final class AgentArtifact {
+
+    private static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static final ConcurrentMap<String, AgentArtifact> JNLP_JARS = new ConcurrentHashMap<String, AgentArtifact>();
+
+    private final File file;
+    private final String sha256;
+
+    private AgentArtifact(File file, String sha256) {
+        this.file = file;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Returns the given jar served by Jenkins, e.g. {@code slave.jar}. The jar is copied to the cache once per
+     * Jenkins start, as it only changes when Jenkins is upgraded.
+     */
+    static AgentArtifact forJnlpJar(String name) throws IOException {
+        AgentArtifact artifact = JNLP_JARS.get(name);
+        if (artifact == null) {
+            synchronized (JNLP_JARS) {
+                artifact = JNLP_JARS.get(name);
+                if (artifact == null) {
+                    File file = new File(getCacheDir(), name);
+                    File tmp = new File(getCacheDir(), name + ".tmp");
+                    FileUtils.copyURLToFile(Jenkins.getInstance().getJnlpJars(name).getURL(), tmp);
+                    if (file.exists() && !file.delete()) {
+                        throw new IOException("Failed to replace " + file);
+                    }
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Failed to move " + tmp + " to " + file);
+                    }
+
+                    artifact = forFile(file);
+                    JNLP_JARS.put(name, artifact);
+                }
+            }
+        }
+        return artifact;
+    }
+
+    /**
+     * Returns an arbitrary file, e.g. a tool bundle. The file is uploaded under its own name.
+     */
+    static AgentArtifact forFile(File file) throws IOException {
+        return new AgentArtifact(file, sha256(file));
+    }
+
+    private static File getCacheDir() throws IOException {
+        File dir = new File(Jenkins.getInstance().getRootDir(), "cache/oneandone-agent-artifacts");
+        FileUtils.forceMkdir(dir);
+        return dir;
+    }
+
+    String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Makes sure the server has this artifact in the given directory, uploading it only if it is missing or differs.
+     * @return {@code true} if the artifact was uploaded
+     */
+    boolean sync(Connection conn, String remoteDirectory, String mode, PrintStream logger)
+            throws IOException, InterruptedException {
+        String remotePath = remoteDirectory + "/" + file.getName();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (conn.exec("sha256sum " + remotePath + " 2>/dev/null", out) == 0
+                && out.toString("US-ASCII").trim().startsWith(sha256)) {
+            logger.println(file.getName() + " is up to date");
+            return false;
+        }
+
+        logger.println("Copying " + file.getName());
+        conn.createSCPClient().put(file.getPath(), remoteDirectory, mode);
+        return true;
+    }
+
+    // maps the file in chunks, so that hashing doesn't copy it to the heap
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE supports SHA-256
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_CHUNK_SIZE, size - position));
+                digest.update(chunk);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.client.RestClientException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gate all 1&amp;1 API requests of a token pass through.
+ *
+ * Requests are rate limited by a token bucket. When 1&amp;1 answers with HTTP 429 anyway, all requests of the token
+ * back off exponentially and the throttled request is retried. Identical requests which are in flight at the same
+ * time, e.g. two launchers fetching the same server, are coalesced into a single HTTP call whose result is shared.
+ * Every HTTP call is counted and timed per endpoint, see {@link #getEndpointStats()}.
+ */
+public final class ApiGate {
+
+    private static final Logger LOGGER = Logger.getLogger(ApiGate.class.getName());
+
+    private static final double REQUESTS_PER_SECOND = Double.parseDouble(
+            System.getProperty(ApiGate.class.getName() + ".requestsPerSecond", "5"));
+    private static final double BURST = Double.parseDouble(
+            System.getProperty(ApiGate.class.getName() + ".burst", "10"));
+
+    /**
+     * How long to back off after the first throttled request. Not final, so that tests can shorten it.
+     */
+    static volatile long minBackoffMillis = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final int MAX_THROTTLED_RETRIES = 3;
+
+    private static final ConcurrentMap<String, ApiGate> GATES = new ConcurrentHashMap<String, ApiGate>();
+
+    private final ConcurrentMap<String, FutureTask<?>> inFlight = new ConcurrentHashMap<String, FutureTask<?>>();
+    private final ConcurrentMap<String, EndpointStats> endpointStats = new ConcurrentHashMap<String, EndpointStats>();
+
+    // token bucket state, guarded by this
+    private double available = BURST;
+    private long lastRefillNanos = System.nanoTime();
+    private long blockedUntilNanos = lastRefillNanos;
+    private int throttledInRow;
+
+    private ApiGate() {
+    }
+
+    public static ApiGate forToken(String apiToken) {
+        ApiGate gate = GATES.get(apiToken);
+        if (gate == null) {
+            ApiGate newGate = new ApiGate();
+            gate = GATES.putIfAbsent(apiToken, newGate);
+            if (gate == null) {
+                gate = newGate;
+            }
+        }
+        return gate;
+    }
+
+    /**
+     * Performs a request which must not be coalesced, e.g. because it modifies a server.
+     * @param endpoint names the endpoint, e.g. {@code createServer}
+     */
+    public <T> T call(String endpoint, Callable<T> request) throws RestClientException, IOException {
+        return call(endpoint, null, request);
+    }
+
+    /**
+     * Performs a request, sharing the result with all concurrent callers passing the same endpoint and key.
+     * @param endpoint names the endpoint, e.g. {@code getServer}
+     * @param key identifies the request among those of the endpoint, e.g. by its parameters, or {@code null} to
+     *            never coalesce
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(final String endpoint, String key, final Callable<T> request) throws RestClientException, IOException {
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return callThrottled(statsFor(endpoint), request);
+            }
+        });
+
+        if (key == null) {
+            task.run();
+            return get(task);
+        }
+        key = endpoint + ":" + key;
+
+        FutureTask<?> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            LOGGER.log(Level.FINE, "Coalescing request {0}", key);
+            return (T) get(existing);
+        }
+
+        try {
+            task.run();
+            return get(task);
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    private <T> T callThrottled(EndpointStats stats, Callable<T> request) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            acquire();
+            long start = System.nanoTime();
+            try {
+                T result = request.call();
+                stats.record(System.nanoTime() - start, false, false);
+                onSuccess();
+                return result;
+            } catch (Exception e) {
+                boolean throttled = isThrottled(e);
+                stats.record(System.nanoTime() - start, true, throttled);
+                if (!throttled || attempt >= MAX_THROTTLED_RETRIES) {
+                    throw e;
+                }
+                long backoff = onThrottled();
+                LOGGER.log(Level.INFO, "1&1 API is throttling requests, backing off for {0} ms", backoff);
+            }
+        }
+    }
+
+    private EndpointStats statsFor(String endpoint) {
+        EndpointStats stats = endpointStats.get(endpoint);
+        if (stats == null) {
+            EndpointStats newStats = new EndpointStats();
+            stats = endpointStats.putIfAbsent(endpoint, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the statistics of the HTTP calls made through this gate so far, by endpoint
+     */
+    Map<String, EndpointStats> getEndpointStats() {
+        return new TreeMap<String, EndpointStats>(endpointStats);
+    }
+
+    private void acquire() throws InterruptedIOException {
+        while (true) {
+            long waitMillis;
+            synchronized (this) {
+                long now = System.nanoTime();
+                available = Math.min(BURST, available + (now - lastRefillNanos) / 1e9 * REQUESTS_PER_SECOND);
+                lastRefillNanos = now;
+
+                if (now >= blockedUntilNanos && available >= 1) {
+                    available -= 1;
+                    return;
+                }
+
+                long refillMillis = (long) Math.ceil((1 - available) * 1000 / REQUESTS_PER_SECOND);
+                waitMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(blockedUntilNanos - now), refillMillis);
+            }
+
+            try {
+                Thread.sleep(Math.max(1, waitMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the 1&1 API rate limit");
+            }
+        }
+    }
+
+    private synchronized void onSuccess() {
+        throttledInRow = 0;
+    }
+
+    private synchronized long onThrottled() {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, minBackoffMillis << Math.min(throttledInRow, 16));
+        throttledInRow++;
+        blockedUntilNanos = Math.max(blockedUntilNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff));
+        // don't let a burst of queued requests hit the API right after backing off
+        available = 0;
+        return backoff;
+    }
+
+    /**
+     * The SDK reports HTTP errors as {@link RestClientException}s carrying the status code. The message isn't
+     * inspected, as it may contain IDs of servers or images, which are hex strings.
+     */
+    static boolean isThrottled(Throwable t) {
+        return t instanceof RestClientException && ((RestClientException) t).getStatusCode() == 429;
+    }
+
+    /**
+     * @return whether the API answered that the requested resource doesn't exist
+     */
+    static boolean isNotFound(Throwable t) {
+        return t instanceof RestClientException && ((RestClientException) t).getStatusCode() == 404;
+    }
+
+    /**
+     * Counts and times the HTTP calls to an endpoint. Retries of throttled requests are counted as calls of their own.
+     */
+    static final class EndpointStats {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram(LatencyHistogram.API_BOUNDS);
+
+        private void record(long nanos, boolean error, boolean throttled) {
+            calls.increment();
+            if (error) {
+                errors.increment();
+            }
+            if (throttled) {
+                this.throttled.increment();
+            }
+            latency.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+
+        long getCalls() {
+            return calls.sum();
+        }
+
+        /**
+         * @return the number of calls which failed, including the throttled ones
+         */
+        long getErrors() {
+            return errors.sum();
+        }
+
+        long getThrottled() {
+            return throttled.sum();
+        }
+
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    private static <T> T get(FutureTask<T> task) throws RestClientException, IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a 1&1 API request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RestClientException) {
+                throw (RestClientException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
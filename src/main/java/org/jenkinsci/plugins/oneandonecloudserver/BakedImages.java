@@ -0,0 +1,328 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.client.RestClientException;
+import hudson.Util;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Images baked from bootstrapped servers of templates with {@link SlaveTemplate#isBakeImage()} enabled.
+ *
+ * After the first server of such a template ran its init script and got Java installed, an image of it is created.
+ * Once 1&amp;1 reports the image active, new servers of the template are created from it instead of the configured
+ * appliance, so they come up with everything installed. Each image records a hash of the appliance and init script
+ * it was baked from; when either changes, the template falls back to its appliance and a new image is baked from the
+ * next bootstrapped server. The outdated image is deleted once its replacement is ready. An image which isn't active
+ * within {@link #bakeTimeoutMillis} is given up and deleted, and baked again like any failed image.
+ */
+public final class BakedImages {
+
+    private static final Logger LOGGER = Logger.getLogger(BakedImages.class.getName());
+
+    private static final long CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long RETRY_FAILED_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * How long an image may take to become active. Not final, so that tests can shorten it.
+     */
+    static volatile long bakeTimeoutMillis = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(BakedImages.class.getName() + ".bakeTimeoutMinutes", 60));
+
+    enum State {
+        PENDING, READY, FAILED
+    }
+
+    private static final ImageEndpoint SDK_ENDPOINT = new ImageEndpoint() {
+        @Override
+        public String createImage(String apiToken, String serverId, String name) throws RestClientException, IOException {
+            return OneAndOne.createImage(apiToken, serverId, name).getId();
+        }
+
+        @Override
+        public String getImageState(String apiToken, String imageId) throws RestClientException, IOException {
+            return String.valueOf(OneAndOne.getImage(apiToken, imageId).getState());
+        }
+
+        @Override
+        public void deleteImage(String apiToken, String imageId) throws RestClientException, IOException {
+            OneAndOne.deleteImage(apiToken, imageId);
+        }
+    };
+
+    private static volatile ImageEndpoint endpoint = SDK_ENDPOINT;
+
+    // guarded by BakedImages.class, by cloud and template name
+    private static Map<String, Image> images;
+
+    private BakedImages() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Replaces the 1&amp;1 image endpoint, e.g. by a fake.
+     * @param imageEndpoint the endpoint to use, or {@code null} to use 1&amp;1 again
+     */
+    static void setEndpoint(ImageEndpoint imageEndpoint) {
+        endpoint = imageEndpoint == null ? SDK_ENDPOINT : imageEndpoint;
+    }
+
+    /**
+     * Returns the appliance to create a new server of the given template from: the baked image if it is ready and
+     * up to date, the configured appliance otherwise.
+     */
+    public static String getApplianceId(String cloudName, SlaveTemplate template, String apiToken) {
+        if (!template.isBakeImage()) {
+            return template.getApplianceId();
+        }
+
+        Image image;
+        boolean timedOut;
+        synchronized (BakedImages.class) {
+            image = getImages().get(key(cloudName, template));
+            if (image == null || !image.recipeHash.equals(recipeHash(template))) {
+                return template.getApplianceId();
+            }
+            timedOut = image.isTimedOut();
+            if (!timedOut) {
+                if (image.imageId == null) {
+                    return template.getApplianceId();
+                }
+                if (image.state == State.READY) {
+                    return image.imageId;
+                }
+                if (image.state == State.FAILED || System.currentTimeMillis() - image.lastChecked < CHECK_INTERVAL_MILLIS) {
+                    return template.getApplianceId();
+                }
+                image.lastChecked = System.currentTimeMillis();
+            }
+        }
+
+        if (timedOut) {
+            giveUp(image, apiToken);
+            return template.getApplianceId();
+        }
+        refresh(image, apiToken);
+
+        synchronized (BakedImages.class) {
+            return image.state == State.READY ? image.imageId : template.getApplianceId();
+        }
+    }
+
+    /**
+     * Like {@link #getApplianceId}, but without checking a pending image, so without calling the 1&amp;1 API.
+     */
+    static String getCurrentApplianceId(String cloudName, SlaveTemplate template) {
+        if (!template.isBakeImage()) {
+            return template.getApplianceId();
+        }
+        synchronized (BakedImages.class) {
+            Image image = getImages().get(key(cloudName, template));
+            return image != null && image.state == State.READY && image.recipeHash.equals(recipeHash(template))
+                    ? image.imageId : template.getApplianceId();
+        }
+    }
+
+    private static void refresh(Image image, String apiToken) {
+        String state;
+        try {
+            state = endpoint.getImageState(apiToken, image.imageId);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to check the state of image " + image.imageId, e);
+            return;
+        }
+
+        String outdated;
+        synchronized (BakedImages.class) {
+            if ("ACTIVE".equals(state)) {
+                LOGGER.log(Level.INFO, "Image {0} is ready", image.imageId);
+                image.state = State.READY;
+            } else if (state.contains("ERROR") || state.contains("FAIL")) {
+                LOGGER.log(Level.WARNING, "Image {0} couldn''t be baked, it is {1}", new Object[]{image.imageId, state});
+                image.state = State.FAILED;
+            } else {
+                return;
+            }
+            outdated = image.outdatedImageId;
+            image.outdatedImageId = null;
+            save();
+        }
+
+        if (outdated != null) {
+            delete(apiToken, outdated);
+        }
+    }
+
+    /**
+     * Marks an image which took too long to bake as failed, and deletes it along with the image it was to replace.
+     */
+    private static void giveUp(Image image, String apiToken) {
+        String timedOut;
+        String outdated;
+        synchronized (BakedImages.class) {
+            if (!image.isTimedOut()) {
+                // given up by another thread
+                return;
+            }
+            LOGGER.log(Level.WARNING, "Image {0} wasn''t baked within {1} minutes, giving up",
+                    new Object[]{image.imageId, TimeUnit.MILLISECONDS.toMinutes(bakeTimeoutMillis)});
+            image.state = State.FAILED;
+            timedOut = image.imageId;
+            outdated = image.outdatedImageId;
+            image.outdatedImageId = null;
+            save();
+        }
+
+        // the ID is missing if the image is still being created, it is deleted once created
+        if (timedOut != null) {
+            delete(apiToken, timedOut);
+        }
+        if (outdated != null) {
+            delete(apiToken, outdated);
+        }
+    }
+
+    /**
+     * Called once a new server of the given template is bootstrapped. Starts baking an image of it, unless the
+     * template has an image of its current appliance and init script already, or one is being baked.
+     * @return whether baking was started
+     */
+    public static boolean onBootstrapped(String cloudName, SlaveTemplate template, String apiToken, String serverId) {
+        if (!template.isBakeImage()) {
+            return false;
+        }
+
+        String key = key(cloudName, template);
+        String recipeHash = recipeHash(template);
+        Image image = new Image(recipeHash);
+        String abandoned = null;
+
+        synchronized (BakedImages.class) {
+            Image previous = getImages().get(key);
+            if (previous != null && previous.recipeHash.equals(recipeHash) && !previous.isTimedOut()
+                    && (previous.state != State.FAILED || System.currentTimeMillis() - previous.requestedAt < RETRY_FAILED_MILLIS)) {
+                return false;
+            }
+            if (previous != null) {
+                // keep the latest ready image until the new one is ready, drop any other
+                if (previous.state == State.READY) {
+                    image.outdatedImageId = previous.imageId;
+                } else {
+                    image.outdatedImageId = previous.outdatedImageId;
+                    abandoned = previous.imageId;
+                }
+            }
+            // claims the bake, so that servers bootstrapped at the same time don't bake as well
+            getImages().put(key, image);
+            save();
+        }
+
+        if (abandoned != null) {
+            delete(apiToken, abandoned);
+        }
+
+        String name = "jenkins-" + cloudName + "-" + template.getName() + "-" + recipeHash.substring(0, 8);
+        String imageId;
+        try {
+            imageId = endpoint.createImage(apiToken, serverId, name);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to bake image " + name, e);
+            synchronized (BakedImages.class) {
+                image.state = State.FAILED;
+                save();
+            }
+            return false;
+        }
+
+        boolean givenUp;
+        synchronized (BakedImages.class) {
+            image.imageId = imageId;
+            givenUp = image.state == State.FAILED || getImages().get(key) != image;
+            save();
+        }
+        if (givenUp) {
+            // timed out or replaced while the image was being created
+            delete(apiToken, imageId);
+            return false;
+        }
+
+        LOGGER.log(Level.INFO, "Baking image {0} ({1}) from server {2}", new Object[]{name, imageId, serverId});
+        return true;
+    }
+
+    private static void delete(String apiToken, String imageId) {
+        try {
+            endpoint.deleteImage(apiToken, imageId);
+            LOGGER.log(Level.INFO, "Deleted image {0}", imageId);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to delete image " + imageId, e);
+        }
+    }
+
+    // the init script leaves a marker on the server, so an image is only valid for the script it was baked with
+    static String recipeHash(SlaveTemplate template) {
+        return Util.getDigestOf(Util.fixNull(template.getApplianceId()) + "\n" + Util.fixNull(template.getInitScript()));
+    }
+
+    // cloud and template names can't contain '-', so the key is unambiguous
+    private static String key(String cloudName, SlaveTemplate template) {
+        return cloudName + "-" + template.getName();
+    }
+
+    private static Map<String, Image> getImages() {
+        if (images == null) {
+            images = load();
+        }
+        return images;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(), BakedImages.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Image> load() {
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                return (Map<String, Image>) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the baked images, baking them again", e);
+            }
+        }
+        return new HashMap<String, Image>();
+    }
+
+    private static void save() {
+        try {
+            getConfigFile().write(images);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the baked images", e);
+        }
+    }
+
+    private static final class Image {
+        private final String recipeHash;
+        private final long requestedAt = System.currentTimeMillis();
+        private String imageId;
+        private State state = State.PENDING;
+        private String outdatedImageId;
+        private transient long lastChecked;
+
+        Image(String recipeHash) {
+            this.recipeHash = recipeHash;
+        }
+
+        // callers hold the lock of BakedImages
+        private boolean isTimedOut() {
+            return state == State.PENDING && System.currentTimeMillis() - requestedAt >= bakeTimeoutMillis;
+        }
+    }
+}
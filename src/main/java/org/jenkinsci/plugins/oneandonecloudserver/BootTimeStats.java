@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Observed time it takes a new server to come online, from its creation until the slave agent is connected.
+ * Servers are grouped by the appliance or baked image they were created from and their fixed instance size, as those
+ * determine how long a server takes to deploy and to bootstrap, regardless of the template or cloud they belong to.
+ * A launch which fails counts as one which took the whole launch timeout, so that templates whose servers never come
+ * online don't look unmeasured forever.
+ */
+public final class BootTimeStats {
+
+    private static final Logger LOGGER = Logger.getLogger(BootTimeStats.class.getName());
+
+    /**
+     * Weight of the latest sample in the moving average.
+     */
+    private static final double ALPHA = 0.3;
+
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+
+    private BootTimeStats() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Called when a new server of the given template is about to be created from the given appliance or image.
+     */
+    static void recordAttempt(String applianceId, SlaveTemplate template) {
+        entryFor(key(applianceId, template)).recordAttempt();
+    }
+
+    public static void record(String applianceId, SlaveTemplate template, long millis) {
+        String key = key(applianceId, template);
+        Entry entry = entryFor(key);
+        entry.record(millis);
+
+        LOGGER.log(Level.FINE, "Server of {0} came online in {1} ms, average is {2} ms", new Object[]{key, millis, entry.getAverage()});
+    }
+
+    /**
+     * Records a launch of a new server which failed, as if it took the given timeout.
+     */
+    static void recordFailure(String applianceId, SlaveTemplate template, long timeoutMillis) {
+        String key = key(applianceId, template);
+        Entry entry = entryFor(key);
+        entry.record(timeoutMillis);
+
+        LOGGER.log(Level.FINE, "Server of {0} failed to come online, average is {1} ms", new Object[]{key, entry.getAverage()});
+    }
+
+    /**
+     * Starts the moving average of the given template with the given time to online, unless servers with the same
+     * appliance and instance size came online already. Used to carry the average over restarts, see
+     * {@link ProvisioningHistory}.
+     */
+    static void seed(String cloudName, SlaveTemplate template, long millis) {
+        Entry newEntry = new Entry();
+        newEntry.record(millis);
+        ENTRIES.putIfAbsent(key(BakedImages.getCurrentApplianceId(cloudName, template), template), newEntry);
+    }
+
+    /**
+     * @return the moving average of the time to online of the servers the given template currently creates, in
+     * milliseconds, or -1 if none came online or failed yet
+     */
+    public static long getAverage(String cloudName, SlaveTemplate template) {
+        Entry entry = ENTRIES.get(key(BakedImages.getCurrentApplianceId(cloudName, template), template));
+        return entry == null || entry.getSamples() == 0 ? -1 : entry.getAverage();
+    }
+
+    /**
+     * @return whether no server like the ones the given template currently creates was attempted yet
+     */
+    public static boolean isUntried(String cloudName, SlaveTemplate template) {
+        Entry entry = ENTRIES.get(key(BakedImages.getCurrentApplianceId(cloudName, template), template));
+        return entry == null || entry.isUntried();
+    }
+
+    private static Entry entryFor(String key) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = ENTRIES.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    private static String key(String applianceId, SlaveTemplate template) {
+        return applianceId + "/" + template.getFixedInstanceSizeId();
+    }
+
+    private static final class Entry {
+        private long average;
+        private int samples;
+        private int attempts;
+
+        synchronized void recordAttempt() {
+            attempts++;
+        }
+
+        synchronized boolean isUntried() {
+            return attempts == 0 && samples == 0;
+        }
+
+        synchronized void record(long millis) {
+            average = samples == 0 ? millis : Math.round(ALPHA * millis + (1 - ALPHA) * average);
+            samples++;
+        }
+
+        synchronized long getAverage() {
+            return average;
+        }
+
+        synchronized int getSamples() {
+            return samples;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the server slots of a {@link Cloud} which are reserved but not yet backed by a Jenkins node.
+ *
+ * Sometimes nodes can be provisioned very fast (or in parallel), leading to more nodes being provisioned than
+ * the instance cap allows, as they all check 1&amp;1 at about the same time right before provisioning and see
+ * that the instance cap was not reached yet. Instead of serializing the whole provisioning, a slot is reserved
+ * before a server gets created. The reservation is committed once the node is added to Jenkins, from which point
+ * on it is counted by the regular instance cap checks, or released if the creation failed.
+ *
+ * A reserved server shows up in the inventory as soon as it's created, and among the Jenkins nodes right before
+ * its reservation is committed. Such servers are taken out of those counts again, so that every server is counted
+ * exactly once, either as reserved or as existing.
+ *
+ * Only the check-and-reserve step is synchronized, per cloud, and it never performs remote calls. Reading the
+ * headroom is lock-free.
+ */
+public final class CapacityLedger {
+
+    private static final Logger LOGGER = Logger.getLogger(CapacityLedger.class.getName());
+
+    private static final ConcurrentMap<String, CapacityLedger> LEDGERS = new ConcurrentHashMap<String, CapacityLedger>();
+
+    private final String cloudName;
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> reservedBySlave = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Set<Reservation> outstanding = ConcurrentHashMap.newKeySet();
+
+    private CapacityLedger(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * Returns the ledger of the given cloud. The ledger is kept by name, so reservations survive reconfiguration
+     * of the cloud.
+     */
+    public static CapacityLedger forCloud(String cloudName) {
+        CapacityLedger ledger = LEDGERS.get(cloudName);
+        if (ledger == null) {
+            CapacityLedger newLedger = new CapacityLedger(cloudName);
+            ledger = LEDGERS.putIfAbsent(cloudName, newLedger);
+            if (ledger == null) {
+                ledger = newLedger;
+            }
+        }
+        return ledger;
+    }
+
+    /**
+     * Atomically checks the cloud and slave template instance caps and reserves a slot if both have room left.
+     * Servers are counted from the Jenkins nodes and from the given inventory, whichever is higher.
+     * If the template has a parked server, it is reserved instead, regardless of the instance caps, as powering it
+     * on doesn't add a server.
+     *
+     * @return the reservation, or {@code null} if either instance cap is reached
+     */
+    public synchronized Reservation tryReserve(Cloud cloud, SlaveTemplate template, ServerInventory inventory) {
+        // the parked server is no longer counted as parked, but as reserved
+        ParkedServers.Parked parked = ParkedServers.claim(cloudName, template.getName());
+        if (parked != null) {
+            LOGGER.log(Level.FINE, "Reserved parked server {0} in cloud {1}", new Object[]{parked.getServerName(), cloudName});
+            return reserve(template, parked);
+        }
+
+        // reserved servers which are counted as existing already
+        int cloudAdded = 0;
+        int cloudListed = 0;
+        int slaveAdded = 0;
+        int slaveListed = 0;
+        for (Reservation reservation : outstanding) {
+            String serverName = reservation.serverName;
+            if (serverName == null) {
+                continue;
+            }
+            boolean sameSlave = reservation.template.getName().equals(template.getName());
+            if (NodeCountIndex.contains(serverName)) {
+                cloudAdded++;
+                slaveAdded += sameSlave ? 1 : 0;
+            }
+            if (inventory.isCounted(serverName)) {
+                cloudListed++;
+                slaveListed += sameSlave ? 1 : 0;
+            }
+        }
+
+        int cloudUsed = Math.max(cloud.countServersLocal() - cloudAdded, inventory.countCloudServers(cloudName) - cloudListed);
+        if (isReached(cloudUsed + reserved.get(), cloud.getEffectiveInstanceCap())) {
+            return null;
+        }
+
+        int slaveUsed = Math.max(template.countServersLocal(cloudName) - slaveAdded,
+                inventory.countSlaveServers(cloudName, template.getName()) - slaveListed);
+        if (isReached(slaveUsed + getReserved(template), template.getInstanceCap())) {
+            return null;
+        }
+
+        LOGGER.log(Level.FINE, "Reserved a slot for {0} in cloud {1}", new Object[]{template.getName(), cloudName});
+        return reserve(template, null);
+    }
+
+    private Reservation reserve(SlaveTemplate template, ParkedServers.Parked parked) {
+        Reservation reservation = new Reservation(template, parked);
+        outstanding.add(reservation);
+        reserved.incrementAndGet();
+        counterFor(template).incrementAndGet();
+        return reservation;
+    }
+
+    /**
+     * Lock-free check whether a new server could be provisioned for the given template, counting the
+     * Jenkins nodes and the outstanding reservations.
+     */
+    public boolean hasHeadroom(Cloud cloud, SlaveTemplate template) {
+        return ParkedServers.hasClaimable(cloudName, template.getName())
+                || !isReached(cloud.countServersLocal() + reserved.get(), cloud.getEffectiveInstanceCap())
+                && !isReached(template.countServersLocal(cloudName) + getReserved(template), template.getInstanceCap());
+    }
+
+    /**
+     * @return the number of outstanding reservations in this cloud
+     */
+    public int getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * @return the number of outstanding reservations for the given slave template
+     */
+    public int getReserved(SlaveTemplate template) {
+        AtomicInteger counter = reservedBySlave.get(template.getName());
+        return counter == null ? 0 : counter.get();
+    }
+
+    private AtomicInteger counterFor(SlaveTemplate template) {
+        AtomicInteger counter = reservedBySlave.get(template.getName());
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            counter = reservedBySlave.putIfAbsent(template.getName(), newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    // an instance cap of 0 means there is no limit
+    private static boolean isReached(int count, int instanceCap) {
+        return instanceCap != 0 && count >= instanceCap;
+    }
+
+    /**
+     * A reserved server slot. Exactly one of {@link #commit()} and {@link #release()} takes effect,
+     * calling either of them again is a no-op.
+     */
+    public final class Reservation {
+        private final SlaveTemplate template;
+        private final ParkedServers.Parked parked;
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        // the server taking the slot, once it's known
+        private volatile String serverName;
+
+        private Reservation(SlaveTemplate template, ParkedServers.Parked parked) {
+            this.template = template;
+            this.parked = parked;
+            this.serverName = parked == null ? null : parked.getServerName();
+        }
+
+        public SlaveTemplate getTemplate() {
+            return template;
+        }
+
+        /**
+         * @return the parked server to power on for this slot, or {@code null} if a new server is to be created
+         */
+        ParkedServers.Parked getParked() {
+            return parked;
+        }
+
+        /**
+         * Names the server which is created for this slot, so that it isn't counted twice once it exists.
+         */
+        void setServerName(String serverName) {
+            this.serverName = serverName;
+        }
+
+        /**
+         * Marks the slot as taken by a node which was added to Jenkins, so that it is no longer counted as reserved.
+         */
+        public void commit() {
+            if (open.compareAndSet(true, false)) {
+                free();
+                LOGGER.log(Level.FINE, "Committed a slot for {0} in cloud {1}", new Object[]{template.getName(), cloudName});
+            }
+        }
+
+        /**
+         * Gives the slot back, e.g. because the server couldn't be created.
+         */
+        public void release() {
+            if (open.compareAndSet(true, false)) {
+                free();
+                LOGGER.log(Level.FINE, "Released a slot for {0} in cloud {1}", new Object[]{template.getName(), cloudName});
+            }
+        }
+
+        private void free() {
+            outstanding.remove(this);
+            counterFor(template).decrementAndGet();
+            reserved.decrementAndGet();
+        }
+    }
+}
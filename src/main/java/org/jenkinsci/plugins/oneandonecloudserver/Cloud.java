@@ -1,14 +1,10 @@
 package org.jenkinsci.plugins.oneandonecloudserver;
 
 import com.google.common.base.Strings;
-import com.oneandone.rest.POJO.Response.ServerResponse;
-import com.oneandone.rest.POJO.Response.Types;
 import com.oneandone.sdk.OneAndOneApi;
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
-import hudson.model.Node;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -23,7 +19,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,16 +29,9 @@ public class Cloud extends hudson.slaves.Cloud {
 
     private static final Logger LOGGER = Logger.getLogger(Cloud.class.getName());
 
-    /**
-     * Sometimes nodes can be provisioned very fast (or in parallel), leading to more nodes being
-     * provisioned than the instance cap allows, as they all check Profitbricks at about the same time
-     * right before provisioning and see that instance cap was not reached yet. So, for example, there
-     * might be a situation where 2 nodes see that 1 more node can be provisioned before the instance cap
-     * is reached, and they both happily provision, making one more node being provisioned than the instance
-     * cap allows. Thus we need a synchronization, so that only one node at a time could be provisioned, to
-     * remove the race condition.
-     */
-    private static final Object provisionSynchronizor = new Object();
+    private static final int DEFAULT_PARALLEL_CREATIONS = 10;
+    private static final int DEFAULT_FORECAST_MAX_SERVERS = 2;
+    private static final int MAX_TEMPLATE_INDEX_SIZE = 1000;
 
     /**
      * The 1&1 API auth token
@@ -61,6 +52,29 @@ public class Cloud extends hudson.slaves.Cloud {
     private final Integer instanceCap;
     private final Integer timeoutMinutes;
 
+    /**
+     * The maximum number of servers being created at the same time.
+     */
+    private final Integer parallelCreations;
+
+    /**
+     * How to predict the demand per label, see {@link DemandForecaster}.
+     */
+    private final String forecastPolicy;
+
+    /**
+     * The maximum number of servers provisioned per label and minute ahead of the queued demand.
+     */
+    private final Integer forecastMaxServers;
+
+    /**
+     * How to choose among the templates matching a label, see {@link TemplateSelection}.
+     */
+    private final String templateSelection;
+
+    private transient volatile Semaphore creationPermits;
+    private transient volatile ConcurrentMap<String, List<SlaveTemplate>> templateIndex;
+
     /**
      * List of {@link org.jenkinsci.plugins.oneandonecloudserver.SlaveTemplate}
      */
@@ -74,6 +88,10 @@ public class Cloud extends hudson.slaves.Cloud {
      * @param privateKey private ssh key
      * @param instanceCap The maximum number of instances that can be started
      * @param timeoutMinutes timeout in minutes
+     * @param parallelCreations The maximum number of servers being created at the same time
+     * @param forecastPolicy How to predict the demand per label
+     * @param forecastMaxServers The maximum number of servers provisioned per label and minute ahead of the demand
+     * @param templateSelection How to choose among the templates matching a label
      * @param templates The templates for this cloud
      */
     @DataBoundConstructor
@@ -83,6 +101,10 @@ public class Cloud extends hudson.slaves.Cloud {
                  String privateKey,
                  String instanceCap,
                  String timeoutMinutes,
+                 String parallelCreations,
+                 String forecastPolicy,
+                 String forecastMaxServers,
+                 String templateSelection,
                  List<? extends SlaveTemplate> templates) {
         super(name);
 
@@ -93,6 +115,10 @@ public class Cloud extends hudson.slaves.Cloud {
         this.privateKey = privateKey;
         this.instanceCap = Integer.parseInt(instanceCap);
         this.timeoutMinutes = timeoutMinutes == null || timeoutMinutes.isEmpty() ? 10 : Integer.parseInt(timeoutMinutes);
+        this.parallelCreations = parallelCreations == null || parallelCreations.isEmpty() ? DEFAULT_PARALLEL_CREATIONS : Integer.parseInt(parallelCreations);
+        this.forecastPolicy = DemandForecaster.Policy.fromString(forecastPolicy).name();
+        this.forecastMaxServers = forecastMaxServers == null || forecastMaxServers.isEmpty() ? DEFAULT_FORECAST_MAX_SERVERS : Integer.parseInt(forecastMaxServers);
+        this.templateSelection = TemplateSelection.fromString(templateSelection).name();
 
         if (templates == null) {
             this.templates = Collections.emptyList();
@@ -108,35 +134,34 @@ public class Cloud extends hudson.slaves.Cloud {
             return false;
         }
 
-        int count = 0;
-
         LOGGER.log(Level.INFO, "cloud limit check");
 
-        List<Node> nodes = Jenkins.getInstance().getNodes();
-        for (Node n : nodes) {
-            if (ServerName.isServerInstanceOfCloud(n.getDisplayName(), name)) {
-                count ++;
-            }
-        }
-
-        return count >= Math.min(instanceCap, getSlaveInstanceCap());
+        return countServersLocal() >= Math.min(instanceCap, getSlaveInstanceCap());
     }
 
-    public boolean isInstanceCapReachedRemote(List<ServerResponse> servers) {
-
-        int count = 0;
+    public boolean isInstanceCapReachedRemote(ServerInventory inventory) {
 
         LOGGER.log(Level.INFO, "cloud limit check");
 
-        for (ServerResponse server : servers) {
-            if (!server.getStatus().getState().equals(Types.ServerState.REMOVING)) {
-                if (ServerName.isServerInstanceOfCloud(server.getName(), name)) {
-                    count ++;
-                }
-            }
+        return inventory.countCloudServers(name) >= Math.min(instanceCap, getSlaveInstanceCap());
+    }
+
+    /**
+     * @return the number of Jenkins nodes belonging to this cloud, plus its parked servers
+     */
+    public int countServersLocal() {
+        return NodeCountIndex.countCloudNodes(name) + ParkedServers.countCloud(name);
+    }
+
+    /**
+     * @return the instance cap of this cloud, bounded by the instance caps of its templates, where 0 means no limit
+     */
+    public int getEffectiveInstanceCap() {
+        if (instanceCap == 0) {
+            return 0;
         }
 
-        return count >= Math.min(instanceCap, getSlaveInstanceCap());
+        return Math.min(instanceCap, getSlaveInstanceCap());
     }
 
     private int getSlaveInstanceCap() {
@@ -159,82 +184,161 @@ public class Cloud extends hudson.slaves.Cloud {
      */
     @Override
     public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
-        synchronized (provisionSynchronizor) {
-            List<NodeProvisioner.PlannedNode> provisioningNodes = new ArrayList<NodeProvisioner.PlannedNode>();
-            try {
-                while (excessWorkload > 0) {
-                    List<ServerResponse> servers = OneAndOne.getServers(apiToken);
-
-                    if (isInstanceCapReachedLocal() || isInstanceCapReachedRemote(servers)) {
-                        LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
-                        break;
-                    }
-
-                    final SlaveTemplate template = getTemplateBelowInstanceCap(servers, label);
-                    if (template == null) {
-                        break;
-                    }
-
-                    final String serverName = ServerName.generateServerName(name, template.getName());
-
-                    provisioningNodes.add(new NodeProvisioner.PlannedNode(serverName, Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                        public Node call() throws Exception {
-                            Slave slave;
-                            synchronized (provisionSynchronizor) {
-                                List<ServerResponse> servers = OneAndOne.getServers(apiToken);
-
-                                if (isInstanceCapReachedLocal() || isInstanceCapReachedRemote(servers)) {
-                                    LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
-                                    return null;
-                                }
-                                slave = template.provision(serverName, name, apiToken, privateKey, sshKey, servers);
-                            }
-                            Jenkins.getInstance().addNode(slave);
-                            slave.toComputer().connect(false).get();
-                            return slave;
-                        }
-                    }), template.getNumExecutors()));
-
-                    excessWorkload -= template.getNumExecutors();
-
+        List<NodeProvisioner.PlannedNode> provisioningNodes = new ArrayList<NodeProvisioner.PlannedNode>();
+        try {
+            ServerInventory inventory = ServerInventory.get(apiToken);
+
+            // reserve the whole batch up front, so that the servers can be created concurrently
+            List<CapacityLedger.Reservation> reservations = new ArrayList<CapacityLedger.Reservation>();
+            while (excessWorkload > 0) {
+                CapacityLedger.Reservation reservation = reserve(inventory, label);
+                if (reservation == null) {
+                    LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
+                    break;
                 }
 
-                LOGGER.info("Provisioning " + provisioningNodes.size() + " 1&1 nodes");
+                reservations.add(reservation);
+                excessWorkload -= reservation.getTemplate().getNumExecutors();
+            }
 
-                return provisioningNodes;
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, e.getMessage(), e);
-                return Collections.emptyList();
+            for (CapacityLedger.Reservation reservation : reservations) {
+                provisioningNodes.add(newPlannedNode(reservation));
             }
+
+            LOGGER.info("Provisioning " + provisioningNodes.size() + " 1&1 nodes");
+
+            return provisioningNodes;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, e.getMessage(), e);
+            return provisioningNodes;
         }
     }
 
     /**
-     * Returns true if this cloud is capable of provisioning new nodes for the given label.
+     * Provisions servers from the given template ahead of demand, e.g. to keep a number of idle servers ready.
+     * @return the planned nodes, fewer than requested if an instance cap is reached
      */
-    @Override
-    public boolean canProvision(Label label) {
-        synchronized (provisionSynchronizor) {
-            try {
-                SlaveTemplate template = getTemplateBelowInstanceCapLocal(label);
-                if (template == null) {
-                    LOGGER.log(Level.INFO, "No slaves could provision for label " + label.getDisplayName() + " because they either didn't support such a label or have reached the instance cap.");
-                    return false;
+    public List<NodeProvisioner.PlannedNode> provision(SlaveTemplate template, int count) {
+        List<NodeProvisioner.PlannedNode> provisioningNodes = new ArrayList<NodeProvisioner.PlannedNode>();
+        try {
+            ServerInventory inventory = ServerInventory.get(apiToken);
+            CapacityLedger ledger = getCapacityLedger();
+
+            for (int i = 0; i < count; i++) {
+                CapacityLedger.Reservation reservation = ledger.tryReserve(this, template, inventory);
+                if (reservation == null) {
+                    LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
+                    break;
                 }
+                provisioningNodes.add(newPlannedNode(reservation));
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, e.getMessage(), e);
+        }
 
-                if (isInstanceCapReachedLocal()) {
-                    LOGGER.log(Level.INFO, "Instance cap of " + getInstanceCap() + " reached, not provisioning for label " + label.getDisplayName() + ".");
-                    return false;
+        return provisioningNodes;
+    }
+
+    /**
+     * Launches a server for the given reservation in the background, see {@link ServerLaunch}. At most
+     * {@link #getParallelCreations()} servers of this cloud are being created at the same time, each planned node
+     * completes on its own. Reservations of a parked server power it on instead.
+     */
+    private NodeProvisioner.PlannedNode newPlannedNode(final CapacityLedger.Reservation reservation) {
+        final SlaveTemplate template = reservation.getTemplate();
+        ParkedServers.Parked parked = reservation.getParked();
+        if (parked != null) {
+            return new NodeProvisioner.PlannedNode(parked.getServerName(), ServerLaunch.resume(this, reservation, parked),
+                    template.getNumExecutors());
+        }
+
+        final String serverName = ServerName.generateServerName(name, template.getName());
+
+        return new NodeProvisioner.PlannedNode(serverName, ServerLaunch.create(this, reservation, serverName),
+                template.getNumExecutors());
+    }
+
+    boolean tryAcquireCreationPermit() {
+        return getCreationPermits().tryAcquire();
+    }
+
+    void releaseCreationPermit() {
+        getCreationPermits().release();
+    }
+
+    private Semaphore getCreationPermits() {
+        Semaphore permits = creationPermits;
+        if (permits == null) {
+            synchronized (this) {
+                permits = creationPermits;
+                if (permits == null) {
+                    creationPermits = permits = new Semaphore(getParallelCreations(), true);
                 }
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, e.getMessage(), e);
             }
+        }
+        return permits;
+    }
 
-            return true;
+    /**
+     * Reserves a slot for the most preferred template matching the given label which is below its instance cap.
+     * @return the reservation, or {@code null} if no matching template has room left
+     */
+    private CapacityLedger.Reservation reserve(ServerInventory inventory, Label label) {
+        CapacityLedger ledger = getCapacityLedger();
+
+        for (SlaveTemplate t : getPreferredTemplates(label)) {
+            CapacityLedger.Reservation reservation = ledger.tryReserve(this, t, inventory);
+            if (reservation != null) {
+                return reservation;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if this cloud is capable of provisioning new nodes for the given label.
+     * This doesn't take any locks and doesn't call the 1&amp;1 API, as it's called for every label on every
+     * {@link NodeProvisioner} tick.
+     */
+    @Override
+    public boolean canProvision(Label label) {
+        try {
+            SlaveTemplate template = getTemplateBelowInstanceCapLocal(label);
+            if (template == null) {
+                LOGGER.log(Level.INFO, "No slaves could provision for label " + (label == null ? "" : label.getDisplayName()) + " because they either didn't support such a label or have reached the instance cap.");
+                return false;
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, e.getMessage(), e);
         }
+
+        return true;
     }
 
+    /**
+     * Returns the templates matching the given label. The matches are computed once per label expression and
+     * configuration of this cloud, as this is called for every label on every {@link NodeProvisioner} tick.
+     * @return an unmodifiable list of templates, in the configured order
+     */
     public List<SlaveTemplate> getTemplates(Label label) {
+        ConcurrentMap<String, List<SlaveTemplate>> index = getTemplateIndex();
+        String key = label == null ? "" : label.getExpression();
+
+        List<SlaveTemplate> matchingTemplates = index.get(key);
+        if (matchingTemplates == null) {
+            if (index.size() >= MAX_TEMPLATE_INDEX_SIZE) {
+                // label expressions can be generated dynamically, so don't grow without bounds
+                index.clear();
+            }
+            matchingTemplates = Collections.unmodifiableList(matchTemplates(label));
+            index.put(key, matchingTemplates);
+        }
+
+        return matchingTemplates;
+    }
+
+    private List<SlaveTemplate> matchTemplates(Label label) {
         List<SlaveTemplate> matchingTemplates = new ArrayList<SlaveTemplate>();
 
         for (SlaveTemplate t : templates) {
@@ -248,12 +352,33 @@ public class Cloud extends hudson.slaves.Cloud {
         return matchingTemplates;
     }
 
-    public SlaveTemplate getTemplateBelowInstanceCap(List<ServerResponse> servers, Label label) {
-        List<SlaveTemplate> matchingTempaltes = getTemplates(label);
+    // the templates and their labels can't change without creating a new Cloud, so the index never gets stale
+    private ConcurrentMap<String, List<SlaveTemplate>> getTemplateIndex() {
+        ConcurrentMap<String, List<SlaveTemplate>> index = templateIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = templateIndex;
+                if (index == null) {
+                    templateIndex = index = new ConcurrentHashMap<String, List<SlaveTemplate>>();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the templates matching the given label, ordered by the template selection policy of this cloud
+     */
+    public List<SlaveTemplate> getPreferredTemplates(Label label) {
+        return getTemplateSelection().order(name, getTemplates(label));
+    }
+
+    public SlaveTemplate getTemplateBelowInstanceCap(ServerInventory inventory, Label label) {
+        List<SlaveTemplate> matchingTempaltes = getPreferredTemplates(label);
 
         try {
             for (SlaveTemplate t : matchingTempaltes) {
-                if (!t.isInstanceCapReachedLocal(name) && !t.isInstanceCapReachedRemote(servers, name)) {
+                if (!t.isInstanceCapReachedLocal(name) && !t.isInstanceCapReachedRemote(inventory, name)) {
                     return t;
                 }
             }
@@ -265,11 +390,12 @@ public class Cloud extends hudson.slaves.Cloud {
     }
 
     public SlaveTemplate getTemplateBelowInstanceCapLocal(Label label) {
-        List<SlaveTemplate> matchingTempaltes = getTemplates(label);
+        List<SlaveTemplate> matchingTempaltes = getPreferredTemplates(label);
 
         try {
+            CapacityLedger ledger = getCapacityLedger();
             for (SlaveTemplate t : matchingTempaltes) {
-                if (!t.isInstanceCapReachedLocal(name)) {
+                if (ledger.hasHeadroom(this, t)) {
                     return t;
                 }
             }
@@ -288,6 +414,10 @@ public class Cloud extends hudson.slaves.Cloud {
         return apiToken;
     }
 
+    public String getSshKey() {
+        return sshKey;
+    }
+
     public String getPrivateKey() {
         return privateKey;
     }
@@ -297,10 +427,23 @@ public class Cloud extends hudson.slaves.Cloud {
     }
 
     public OneAndOneApi getApiClient() {
-        OneAndOneApi apiClient = new OneAndOneApi();
-        apiClient.setToken(apiToken);
+        return OneAndOne.getApiClient(apiToken);
+    }
 
-        return apiClient;
+    /**
+     * @return the template with the given name, or {@code null} if there is no such template
+     */
+    public SlaveTemplate getTemplate(String templateName) {
+        for (SlaveTemplate t : templates) {
+            if (t.getName().equals(templateName)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public CapacityLedger getCapacityLedger() {
+        return CapacityLedger.forCloud(name);
     }
 
     public List<SlaveTemplate> getTemplates() {
@@ -311,6 +454,22 @@ public class Cloud extends hudson.slaves.Cloud {
         return timeoutMinutes;
     }
 
+    public int getParallelCreations() {
+        return parallelCreations == null || parallelCreations <= 0 ? DEFAULT_PARALLEL_CREATIONS : parallelCreations;
+    }
+
+    public DemandForecaster.Policy getForecastPolicy() {
+        return DemandForecaster.Policy.fromString(forecastPolicy);
+    }
+
+    public TemplateSelection getTemplateSelection() {
+        return TemplateSelection.fromString(templateSelection);
+    }
+
+    public int getForecastMaxServers() {
+        return forecastMaxServers == null ? DEFAULT_FORECAST_MAX_SERVERS : forecastMaxServers;
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<hudson.slaves.Cloud> {
 
@@ -388,5 +547,65 @@ public class Cloud extends hudson.slaves.Cloud {
                 return FormValidation.ok();
             }
         }
+
+        public ListBoxModel doFillForecastPolicyItems() {
+            ListBoxModel model = new ListBoxModel();
+
+            for (DemandForecaster.Policy policy : DemandForecaster.Policy.values()) {
+                model.add(policy.getDisplayName(), policy.name());
+            }
+
+            return model;
+        }
+
+        public ListBoxModel doFillTemplateSelectionItems() {
+            ListBoxModel model = new ListBoxModel();
+
+            for (TemplateSelection selection : TemplateSelection.values()) {
+                model.add(selection.getDisplayName(), selection.name());
+            }
+
+            return model;
+        }
+
+        public FormValidation doCheckForecastMaxServers(@QueryParameter String forecastMaxServers) {
+            if (Strings.isNullOrEmpty(forecastMaxServers)) {
+                return FormValidation.ok();
+            }
+
+            int forecastMaxServersNumber;
+
+            try {
+                forecastMaxServersNumber = Integer.parseInt(forecastMaxServers);
+            } catch (Exception e) {
+                return FormValidation.error("Must be a number");
+            }
+
+            if (forecastMaxServersNumber < 0) {
+                return FormValidation.error("Must be a nonnegative number");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckParallelCreations(@QueryParameter String parallelCreations) {
+            if (Strings.isNullOrEmpty(parallelCreations)) {
+                return FormValidation.ok();
+            }
+
+            int parallelCreationsNumber;
+
+            try {
+                parallelCreationsNumber = Integer.parseInt(parallelCreations);
+            } catch (Exception e) {
+                return FormValidation.error("Parallel server creations must be a number");
+            }
+
+            if (parallelCreationsNumber <= 0) {
+                return FormValidation.error("Parallel server creations must be a positive number");
+            }
+
+            return FormValidation.ok();
+        }
     }
 }
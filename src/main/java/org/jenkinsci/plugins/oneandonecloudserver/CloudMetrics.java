@@ -0,0 +1,196 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link Cloud}, served in the Prometheus text format at {@code /oneandone-cloud/<cloud>/metrics}.
+ *
+ * Launch phases and outcomes are recorded by {@link ServerLaunch}, the 1&amp;1 API calls by the {@link ApiGate} of the
+ * API token of the cloud, which clouds sharing a token also share. Recording never takes a lock, everything else is
+ * read when the metrics are scraped.
+ */
+public final class CloudMetrics {
+
+    private static final ConcurrentMap<String, CloudMetrics> METRICS = new ConcurrentHashMap<String, CloudMetrics>();
+
+    private final String cloudName;
+    // filled in the constructor and read-only afterwards
+    private final Map<ServerLaunch.Phase, LatencyHistogram> phases = new EnumMap<ServerLaunch.Phase, LatencyHistogram>(ServerLaunch.Phase.class);
+    private final LongAdder launchesOnline = new LongAdder();
+    private final LongAdder launchesFailed = new LongAdder();
+
+    private CloudMetrics(String cloudName) {
+        this.cloudName = cloudName;
+        for (ServerLaunch.Phase phase : ServerLaunch.Phase.values()) {
+            if (getPhaseName(phase) != null) {
+                phases.put(phase, new LatencyHistogram(LatencyHistogram.LAUNCH_BOUNDS));
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics of the given cloud. They are kept by name, so they survive reconfiguration of the cloud.
+     */
+    public static CloudMetrics forCloud(String cloudName) {
+        CloudMetrics metrics = METRICS.get(cloudName);
+        if (metrics == null) {
+            CloudMetrics newMetrics = new CloudMetrics(cloudName);
+            metrics = METRICS.putIfAbsent(cloudName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    // the phase is named after the span it times, phases which aren't timed have no name
+    private static String getPhaseName(ServerLaunch.Phase phase) {
+        switch (phase) {
+            case BOOTING:
+                return "create_to_powered_on";
+            case SSH_READY:
+                return "powered_on_to_ssh";
+            case INIT:
+                return "init_script";
+            case JAVA:
+                return "java_install";
+            case AGENT:
+                return "agent_connect";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Records how long a launch spent in the given phase. Phases without a histogram are ignored.
+     */
+    void recordPhase(ServerLaunch.Phase phase, long millis) {
+        LatencyHistogram histogram = phases.get(phase);
+        if (histogram != null) {
+            histogram.record(millis);
+        }
+    }
+
+    void recordLaunch(boolean online) {
+        (online ? launchesOnline : launchesFailed).increment();
+    }
+
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter out = rsp.getWriter();
+        write(out);
+        out.flush();
+    }
+
+    private void write(PrintWriter out) {
+        String cloud = "cloud=\"" + escape(cloudName) + "\"";
+
+        out.println("# HELP oneandone_launch_phase_seconds Time spent by server launches in each phase.");
+        out.println("# TYPE oneandone_launch_phase_seconds histogram");
+        for (Map.Entry<ServerLaunch.Phase, LatencyHistogram> e : phases.entrySet()) {
+            writeHistogram(out, "oneandone_launch_phase_seconds", cloud + ",phase=\"" + getPhaseName(e.getKey()) + "\"", e.getValue());
+        }
+
+        out.println("# HELP oneandone_launches_total Server launches by outcome.");
+        out.println("# TYPE oneandone_launches_total counter");
+        out.println("oneandone_launches_total{" + cloud + ",result=\"online\"} " + launchesOnline.sum());
+        out.println("oneandone_launches_total{" + cloud + ",result=\"failed\"} " + launchesFailed.sum());
+
+        hudson.slaves.Cloud c = Jenkins.getInstance().getCloud(cloudName);
+        if (c instanceof Cloud) {
+            writeCloudGauges(out, cloud, (Cloud) c);
+            writeApiMetrics(out, cloud, ApiGate.forToken(((Cloud) c).getApiToken()).getEndpointStats());
+        }
+
+        out.println("# HELP oneandone_destroy_queue_depth Servers of all clouds queued or being destroyed.");
+        out.println("# TYPE oneandone_destroy_queue_depth gauge");
+        out.println("oneandone_destroy_queue_depth " + ServerDestroyer.getQueueDepth());
+    }
+
+    private static void writeCloudGauges(PrintWriter out, String cloud, Cloud c) {
+        CapacityLedger ledger = c.getCapacityLedger();
+
+        out.println("# HELP oneandone_pending_creates Servers reserved which are not yet backed by a node.");
+        out.println("# TYPE oneandone_pending_creates gauge");
+        out.println("oneandone_pending_creates{" + cloud + "} " + ledger.getReserved());
+
+        out.println("# HELP oneandone_parked_servers Idle servers which are powered off.");
+        out.println("# TYPE oneandone_parked_servers gauge");
+        out.println("oneandone_parked_servers{" + cloud + "} " + ParkedServers.countCloud(c.getName()));
+
+        out.println("# HELP oneandone_cap_headroom Servers which can be added before the instance cap is reached, +Inf without a cap.");
+        out.println("# TYPE oneandone_cap_headroom gauge");
+        out.println("oneandone_cap_headroom{" + cloud + "} "
+                + headroom(c.getEffectiveInstanceCap(), c.countServersLocal() + ledger.getReserved()));
+        for (SlaveTemplate t : c.getTemplates()) {
+            out.println("oneandone_cap_headroom{" + cloud + ",template=\"" + escape(t.getName()) + "\"} "
+                    + headroom(t.getInstanceCap(), t.countServersLocal(c.getName()) + ledger.getReserved(t)));
+        }
+    }
+
+    private static void writeApiMetrics(PrintWriter out, String cloud, Map<String, ApiGate.EndpointStats> stats) {
+        out.println("# HELP oneandone_api_requests_total HTTP calls to the 1&1 API, shared by the clouds of an API token.");
+        out.println("# TYPE oneandone_api_requests_total counter");
+        for (Map.Entry<String, ApiGate.EndpointStats> e : stats.entrySet()) {
+            out.println("oneandone_api_requests_total{" + endpoint(cloud, e.getKey()) + "} " + e.getValue().getCalls());
+        }
+
+        out.println("# HELP oneandone_api_errors_total Failed HTTP calls to the 1&1 API, including throttled ones.");
+        out.println("# TYPE oneandone_api_errors_total counter");
+        for (Map.Entry<String, ApiGate.EndpointStats> e : stats.entrySet()) {
+            out.println("oneandone_api_errors_total{" + endpoint(cloud, e.getKey()) + "} " + e.getValue().getErrors());
+        }
+
+        out.println("# HELP oneandone_api_throttled_total HTTP calls to the 1&1 API answered with 429.");
+        out.println("# TYPE oneandone_api_throttled_total counter");
+        for (Map.Entry<String, ApiGate.EndpointStats> e : stats.entrySet()) {
+            out.println("oneandone_api_throttled_total{" + endpoint(cloud, e.getKey()) + "} " + e.getValue().getThrottled());
+        }
+
+        out.println("# HELP oneandone_api_request_seconds Latency of HTTP calls to the 1&1 API.");
+        out.println("# TYPE oneandone_api_request_seconds histogram");
+        for (Map.Entry<String, ApiGate.EndpointStats> e : stats.entrySet()) {
+            writeHistogram(out, "oneandone_api_request_seconds", endpoint(cloud, e.getKey()), e.getValue().getLatency());
+        }
+    }
+
+    private static void writeHistogram(PrintWriter out, String name, String labels, LatencyHistogram histogram) {
+        long[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < bounds.length; i++) {
+            out.println(name + "_bucket{" + labels + ",le=\"" + seconds(bounds[i]) + "\"} " + counts[i]);
+        }
+        long count = counts[counts.length - 1];
+        out.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count);
+        out.println(name + "_sum{" + labels + "} " + seconds(histogram.getSumMillis()));
+        out.println(name + "_count{" + labels + "} " + count);
+    }
+
+    private static String headroom(int instanceCap, int used) {
+        return instanceCap == 0 ? "+Inf" : String.valueOf(Math.max(0, instanceCap - used));
+    }
+
+    private static String endpoint(String cloud, String endpoint) {
+        return cloud + ",endpoint=\"" + escape(endpoint) + "\"";
+    }
+
+    private static String seconds(long millis) {
+        return String.valueOf(millis / 1000.0);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
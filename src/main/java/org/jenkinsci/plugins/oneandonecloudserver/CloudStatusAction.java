@@ -0,0 +1,67 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.util.List;
+
+/**
+ * Status page of the 1&amp;1 clouds, available at {@code /oneandone-cloud/} to administrators.
+ */
+@Extension
+public class CloudStatusAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "1&1 Cloud";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "oneandone-cloud";
+    }
+
+    public List<DemandForecaster.ReportEntry> getForecastReport() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return DemandForecaster.get().getReport();
+    }
+
+    public int getDestroyQueueDepth() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return ServerDestroyer.getQueueDepth();
+    }
+
+    public long getDestroyQueueOldestAgeSeconds() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return ServerDestroyer.getOldestAgeMillis() / 1000;
+    }
+
+    /**
+     * Serves the metrics of a cloud at {@code /oneandone-cloud/<cloud>/metrics}.
+     */
+    public CloudMetrics getDynamic(String cloudName, StaplerRequest req, StaplerResponse rsp) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        if (!(Jenkins.getInstance().getCloud(cloudName) instanceof Cloud)) {
+            return null;
+        }
+        return CloudMetrics.forCloud(cloudName);
+    }
+
+    public List<ProvisioningHistory.ReportEntry> getHistoryReport() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return ProvisioningHistory.get().getReport();
+    }
+
+    public OrphanReconciler getOrphanReconciler() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return OrphanReconciler.get();
+    }
+}
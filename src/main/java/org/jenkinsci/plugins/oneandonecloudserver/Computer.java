@@ -2,10 +2,13 @@ package org.jenkinsci.plugins.oneandonecloudserver;
 
 import com.oneandone.rest.POJO.Response.ServerResponse;
 import com.oneandone.rest.client.RestClientException;
-import com.oneandone.sdk.OneAndOneApi;
+import hudson.model.Action;
 import hudson.slaves.AbstractCloudComputer;
+import jenkins.model.Jenkins;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,28 +18,64 @@ public class Computer extends AbstractCloudComputer<Slave> {
 
     private final String apiToken;
     private String serverId;
+    private volatile LaunchTimeline launchTimeline;
 
     public Computer(Slave slave) {
         super(slave);
         apiToken = slave.getCloud().getApiToken();
         serverId = slave.getServerId();
+        NodeCountIndex.add(slave.getNodeName());
     }
 
     public ServerResponse updateInstanceDescription() throws RestClientException, IOException {
-        OneAndOneApi apiClient = new OneAndOneApi();
-        apiClient.setToken(apiToken);
-
-        return apiClient.getServerApi().getServer(serverId);
+        return OneAndOne.getServer(apiToken, serverId);
     }
 
     @Override
     protected void onRemoved() {
         super.onRemoved();
+        if (Jenkins.getInstance().getNode(getName()) != null || ServerLaunch.isUnregistered(getName())) {
+            // the server was handed to a new launch under the same name, which now owns it and its index entry
+            LOGGER.info("Slave removed, server " + serverId + " is launched again");
+            return;
+        }
+        NodeCountIndex.remove(getName());
+
+        if (ParkedServers.onNodeRemoved(serverId)) {
+            LOGGER.info("Slave removed, server " + serverId + " is parked");
+            return;
+        }
 
         LOGGER.info("Slave removed, deleting server " + serverId);
         OneAndOne.tryDestroyServerAsync(apiToken, serverId);
     }
 
+    /**
+     * @return the timeline of the last launch, or {@code null} if the computer wasn't launched yet
+     */
+    public LaunchTimeline getLaunchTimeline() {
+        return launchTimeline;
+    }
+
+    void setLaunchTimeline(LaunchTimeline launchTimeline) {
+        this.launchTimeline = launchTimeline;
+    }
+
+    /**
+     * Adds the timeline of the last launch, so that it is shown on the computer page and exported by its REST API.
+     */
+    @Override
+    public List<Action> getActions() {
+        LaunchTimeline timeline = launchTimeline;
+        if (timeline == null) {
+            return super.getActions();
+        }
+
+        List<Action> actions = new ArrayList<Action>(super.getActions());
+        actions.add(timeline);
+        return actions;
+    }
+
     public Cloud getCloud() {
         return getNode().getCloud();
     }
@@ -1,9 +1,7 @@
 package org.jenkinsci.plugins.oneandonecloudserver;
 
-import com.google.common.base.Strings;
 import com.oneandone.rest.POJO.Response.ServerIPs;
 import com.oneandone.rest.POJO.Response.ServerResponse;
-import com.oneandone.rest.client.RestClientException;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.Session;
@@ -12,19 +10,15 @@ import hudson.model.TaskListener;
 import hudson.remoting.Channel;
 import hudson.slaves.SlaveComputer;
 import hudson.util.TimeUnit2;
-import jenkins.model.Jenkins;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.lang.String.format;
-
 public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
 
     private static final Logger LOGGER = Logger.getLogger(Cloud.class.getName());
@@ -55,6 +49,8 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         }
     }
 
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
     private static final List<String> VALID_VERSIONS = Arrays.asList("1.8", "1.7", "1.9");
 
     private static final Collection<JavaInstaller> INSTALLERS = new HashSet<JavaInstaller>() {{
@@ -91,7 +87,8 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
     }};
 
     /**
-     * Connects to the given {@link Computer} via SSH and installs Java/Jenkins agent if necessary.
+     * Starts the Jenkins agent on a server prepared by a {@link ServerLaunch}. Nodes which were not launched by one,
+     * e.g. because Jenkins was restarted, are prepared again first.
      */
     @Override
     public void launch(SlaveComputer _computer, TaskListener listener) {
@@ -102,31 +99,25 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         Date startDate = new Date();
         logger.println("Start time: " + getUtcDate(startDate));
 
-        final Connection conn;
+        ServerLaunch launch = ServerLaunch.claim(computer.getNode().getNodeName());
+        if (launch == null) {
+            launch = ServerLaunch.relaunch(computer.getNode());
+        }
+        computer.setLaunchTimeline(launch.getTimeline());
+
         Connection cleanupConn = null;
         boolean successful = false;
 
         try {
-            conn = connectToSsh(computer, logger);
-            cleanupConn = conn;
-            logger.println("Authenticating as " + computer.getRemoteAdmin());
-            if (!conn.authenticateWithPublicKey(computer.getRemoteAdmin(), computer.getNode().getPrivateKey().toCharArray(), "")) {
-                logger.println("Authentication failed");
-                throw new Exception("Authentication failed");
-            }
-
-            final SCPClient scp = conn.createSCPClient();
-
-            if (!runInitScript(computer, logger, conn, scp)) {
-                return;
-            }
-
-            if (!installJava(logger, conn)) {
-                return;
+            try {
+                cleanupConn = launch.awaitPrepared();
+            } finally {
+                logger.print(launch.getTranscript());
             }
+            final Connection conn = cleanupConn;
 
-            logger.println("Copying slave.jar");
-            scp.put(Jenkins.getInstance().getJnlpJars("slave.jar").readFully(), "slave.jar","/tmp", "0775");
+            // reconnects to a server which has the same slave.jar already skip the upload
+            AgentArtifact.forJnlpJar("slave.jar").sync(conn, "/tmp", "0775", logger);
             String jvmOpts = Util.fixNull(computer.getNode().getJvmOpts());
             String launchString = "java " + jvmOpts + " -jar /tmp/slave.jar";
             logger.println("Launching slave agent: " + launchString);
@@ -140,29 +131,28 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
                 }
             });
 
+            launch.online();
             successful = true;
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, e.getMessage(), e);
-            try {
-                Jenkins.getInstance().removeNode(computer.getNode());
-            } catch (Exception ee) {
-                ee.printStackTrace(logger);
-            }
+            // removes the node, if that didn't happen already
+            launch.fail("Failed to launch the agent", e);
             e.printStackTrace(logger);
         } finally {
             Date endDate = new Date();
             logger.println("Done setting up at: " + getUtcDate(endDate));
             logger.println("Done in " + TimeUnit2.MILLISECONDS.toSeconds(endDate.getTime() - startDate.getTime()) + " seconds");
+            logger.print(launch.getTimeline());
             if(cleanupConn != null && !successful) {
                 cleanupConn.close();
             }
         }
     }
 
-    private boolean runInitScript(final Computer computer, final PrintStream logger, final Connection conn, final SCPClient scp)
+    static boolean runInitScript(final Slave slave, final PrintStream logger, final Connection conn, final SCPClient scp)
             throws IOException, InterruptedException {
 
-        String initScript = Util.fixEmptyAndTrim(computer.getNode().getInitScript());
+        String initScript = Util.fixEmptyAndTrim(slave.getInitScript());
 
         if (initScript == null) {
             return true;
@@ -175,7 +165,7 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         scp.put(initScript.getBytes("UTF-8"), "init.sh", "/tmp", "0700");
         Session session = conn.openSession();
         session.requestDumbPTY(); // so that the remote side bundles stdout and stderr
-        session.execCommand(buildUpCommand(computer, "/tmp/init.sh"));
+        session.execCommand(buildUpCommand(slave, "/tmp/init.sh"));
 
         session.getStdin().close();    // nothing to write here
         session.getStderr().close();   // we are not supposed to get anything from stderr
@@ -191,13 +181,13 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         // Needs a tty to run sudo.
         session = conn.openSession();
         session.requestDumbPTY(); // so that the remote side bundles stdout and stderr
-        session.execCommand(buildUpCommand(computer, "touch ~/.hudson-run-init"));
+        session.execCommand(buildUpCommand(slave, "touch ~/.hudson-run-init"));
         session.close();
 
         return true;
     }
 
-    private boolean installJava(final PrintStream logger, final Connection conn) throws IOException, InterruptedException {
+    static boolean installJava(final PrintStream logger, final Connection conn) throws IOException, InterruptedException {
         logger.println("Verifying that java exists");
         if (conn.exec("java -fullversion", logger) != 0) {
             logger.println("Try to install one of these Java-versions: " + VALID_VERSIONS);
@@ -217,53 +207,7 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         return true;
     }
 
-    private Connection connectToSsh(Computer computer, PrintStream logger) throws RestClientException, IOException {
-
-        final long timeout = TimeUnit2.MINUTES.toMillis(computer.getCloud().getTimeoutMinutes());
-        final long startTime = System.currentTimeMillis();
-        final int sleepTime = 10;
-
-        long waitTime;
-
-        while ((waitTime = System.currentTimeMillis() - startTime) < timeout) {
-
-            // Hack to fetch this each time through the loop to get the latest information.
-            final ServerResponse server = OneAndOne.getServer(
-                    computer.getCloud().getApiToken(),
-                    computer.getNode().getServerId());
-
-            if (isServerStarting(server)) {
-                logger.println("Waiting for server to enter POWERED_ON state. Sleeping " + sleepTime + " seconds.");
-            } else {
-                try {
-                    final String host = getIpAddress(computer);
-
-                    if (Strings.isNullOrEmpty(host) || "0.0.0.0".equals(host)) {
-                        logger.println("No ip address yet, your host is most likely waiting for an ip address.");
-                    } else {
-                        int port = computer.getSshPort();
-
-                        Connection conn = getServerConnection(host, port, logger);
-                        if (conn != null) {
-                            return conn;
-                        }
-                    }
-                } catch (IOException e) {
-                    // Ignore, we'll retry.
-                }
-                logger.println("Waiting for SSH to come up. Sleeping " + sleepTime + " seconds.");
-            }
-
-            sleep(sleepTime);
-        }
-
-        throw new RuntimeException(format(
-                "Timed out after %d seconds of waiting for ssh to become available (max timeout configured is %s)",
-                waitTime / 1000,
-                timeout / 1000));
-    }
-
-    private static boolean isServerStarting(final ServerResponse server) {
+    static boolean isServerStarting(final ServerResponse server) {
 
         switch (server.getStatus().getState()) {
             case CONFIGURING:
@@ -280,22 +224,20 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         }
     }
 
-    private Connection getServerConnection(String host, int port, PrintStream logger) throws IOException {
+    static Connection getServerConnection(String host, int port, PrintStream logger) throws IOException {
         logger.println("Connecting to " + host + " on port " + port + ". ");
         Connection conn = new Connection(host, port);
         try {
-            conn.connect();
-//            conn.connect(null, 10 * 1000, 10 * 1000);
-        } catch (SocketTimeoutException e) {
+            conn.connect(null, CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            conn.close();
             return null;
         }
         logger.println("Connected via SSH.");
         return conn;
     }
 
-    private static String getIpAddress(Computer computer) throws RestClientException, IOException {
-        ServerResponse instance = computer.updateInstanceDescription();
-
+    static String getIpAddress(ServerResponse instance) {
         for (final ServerIPs network : instance.getIps()) {
             String host = network.getIp();
             if (host != null) {
@@ -306,7 +248,7 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         return null;
     }
 
-    private int waitCompletion(Session session) throws InterruptedException {
+    private static int waitCompletion(Session session) throws InterruptedException {
         // I noticed that the exit status delivery often gets delayed. Wait up to 1 sec.
         for (int i = 0; i < 10; i++) {
             Integer r = session.getExitStatus();
@@ -316,21 +258,13 @@ public class ComputerLauncher extends hudson.slaves.ComputerLauncher {
         return -1;
     }
 
-    protected String buildUpCommand(Computer computer, String command) {
-        if (!computer.getRemoteAdmin().equals("root")) {
+    static String buildUpCommand(Slave slave, String command) {
+        if (!slave.getRemoteAdmin().equals("root")) {
 //            command = computer.getRootCommandPrefix() + " " + command;
         }
         return command;
     }
 
-    private static void sleep(int seconds) {
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            // Ignore
-        }
-    }
-
     private String getUtcDate(Date date) {
         SimpleDateFormat utcFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
         utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -0,0 +1,464 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.WorkUnit;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the demand per label every minute and provisions servers ahead of the demand predicted for the time it
+ * takes a new server to come online, so that recurring spikes don't have to wait for servers to boot.
+ *
+ * The demand of a label is the number of executors running builds assigned to it plus the number of its buildable
+ * queue items. Busy executors are counted too, as the queue stays empty once servers are provisioned ahead of it, and
+ * the models would otherwise learn that there is no demand. The demand is modelled as an exponentially weighted
+ * moving average and as a seasonal profile with one bucket per hour of the week. Which model is used, and how many
+ * servers may be provisioned ahead of the demand, is configured per {@link Cloud}.
+ */
+@Extension
+public class DemandForecaster extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(DemandForecaster.class.getName());
+
+    /**
+     * How far ahead the demand is predicted until the time it takes a new server to come online was observed.
+     */
+    static final long HORIZON_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final double EWMA_ALPHA = 0.2;
+    private static final double SEASONAL_ALPHA = 0.3;
+    private static final int BUCKETS = 7 * 24;
+    private static final int MAX_LABELS = 200;
+    private static final int SAVE_INTERVAL = 60;
+
+    public enum Policy {
+        NONE("Disabled"),
+        EWMA("Moving average"),
+        SEASONAL("Hour of week profile");
+
+        private final String displayName;
+
+        Policy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public static Policy fromString(String value) {
+            if (value == null || value.isEmpty()) {
+                return NONE;
+            }
+            try {
+                return valueOf(value);
+            } catch (IllegalArgumentException e) {
+                return NONE;
+            }
+        }
+    }
+
+    private transient Map<String, LabelDemand> demands;
+    private transient int samplesSinceSave;
+    // busy executors per label at the last sample, only used by the forecaster thread
+    private transient Map<String, Integer> busy = Collections.emptyMap();
+
+    public DemandForecaster() {
+        super("1&1 demand forecaster");
+    }
+
+    public static DemandForecaster get() {
+        return Jenkins.getInstance().getExtensionList(DemandForecaster.class).get(0);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        long now = System.currentTimeMillis();
+
+        Map<String, Integer> busy = new HashMap<String, Integer>();
+        for (hudson.model.Computer c : Jenkins.getInstance().getComputers()) {
+            for (Executor e : c.getExecutors()) {
+                WorkUnit workUnit = e.getCurrentWorkUnit();
+                if (workUnit != null && isServedByAnyCloud(workUnit.context.item.getAssignedLabel())) {
+                    increment(busy, key(workUnit.context.item.getAssignedLabel()));
+                }
+            }
+        }
+
+        Map<String, Integer> demand = new HashMap<String, Integer>(busy);
+        for (Queue.Item item : Jenkins.getInstance().getQueue().getItems()) {
+            if (item.isBuildable() && isServedByAnyCloud(item.getAssignedLabel())) {
+                increment(demand, key(item.getAssignedLabel()));
+            }
+        }
+
+        this.busy = busy;
+        record(demand, getEvaluations(demand.keySet()), now);
+        provisionAhead(now);
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    // the forecast of each label is evaluated like the first cloud which forecasts it provisions ahead
+    private Map<String, Evaluation> getEvaluations(Collection<String> newLabels) {
+        Set<String> keys = new HashSet<String>(newLabels);
+        keys.addAll(getLabels());
+
+        Map<String, Evaluation> evaluations = new HashMap<String, Evaluation>();
+        for (String key : keys) {
+            Label label = key.isEmpty() ? null : Jenkins.getInstance().getLabel(key);
+            for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+                if (!(c instanceof Cloud) || ((Cloud) c).getForecastPolicy() == Policy.NONE) {
+                    continue;
+                }
+                List<SlaveTemplate> templates = ((Cloud) c).getPreferredTemplates(label);
+                if (!templates.isEmpty()) {
+                    evaluations.put(key, new Evaluation(((Cloud) c).getForecastPolicy(), getHorizon((Cloud) c, templates.get(0))));
+                    break;
+                }
+            }
+        }
+        return evaluations;
+    }
+
+    /**
+     * @return how far ahead the demand is predicted for servers of the given template, i.e. as far as they take to
+     * come online
+     */
+    static long getHorizon(Cloud cloud, SlaveTemplate template) {
+        long horizon = BootTimeStats.getAverage(cloud.getName(), template);
+        return horizon <= 0 ? HORIZON_MILLIS : horizon;
+    }
+
+    private static boolean isServedByAnyCloud(Label label) {
+        for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+            if (c instanceof Cloud && !((Cloud) c).getTemplates(label).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param demand busy plus queued executors per label
+     * @param evaluations how the forecasts are evaluated per label, labels without one aren't evaluated
+     */
+    synchronized void record(Map<String, Integer> demand, Map<String, Evaluation> evaluations, long now) {
+        Map<String, LabelDemand> demands = getDemands();
+
+        for (String key : demand.keySet()) {
+            if (!demands.containsKey(key) && demands.size() < MAX_LABELS) {
+                demands.put(key, new LabelDemand());
+            }
+        }
+
+        // labels without demand get a sample of 0, so that the averages go down again
+        for (Map.Entry<String, LabelDemand> e : demands.entrySet()) {
+            Integer count = demand.get(e.getKey());
+            e.getValue().record(count == null ? 0 : count, evaluations.get(e.getKey()), now);
+        }
+
+        if (++samplesSinceSave >= SAVE_INTERVAL) {
+            samplesSinceSave = 0;
+            save();
+        }
+    }
+
+    private void provisionAhead(long now) {
+        for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof Cloud)) {
+                continue;
+            }
+
+            Cloud cloud = (Cloud) c;
+            if (cloud.getForecastPolicy() == Policy.NONE || cloud.getForecastMaxServers() == 0) {
+                continue;
+            }
+
+            for (String key : getLabels()) {
+                Label label = key.isEmpty() ? null : Jenkins.getInstance().getLabel(key);
+                List<SlaveTemplate> templates = cloud.getPreferredTemplates(label);
+                if (templates.isEmpty()) {
+                    continue;
+                }
+
+                // look as far ahead as a server of the preferred template takes to come online
+                SlaveTemplate template = templates.get(0);
+                long horizon = getHorizon(cloud, template);
+
+                double predicted = forecast(key, cloud.getForecastPolicy(), now + horizon);
+                Integer busyExecutors = busy.get(key);
+                int available = (busyExecutors == null ? 0 : busyExecutors) + countAvailableExecutors(cloud, label, templates);
+                int missing = (int) Math.ceil(predicted) - available;
+                if (missing <= 0) {
+                    continue;
+                }
+
+                int servers = Math.min(cloud.getForecastMaxServers(),
+                        (missing + template.getNumExecutors() - 1) / template.getNumExecutors());
+
+                LOGGER.log(Level.INFO, "Predicted demand of {0} for label ''{1}'', provisioning {2} servers ahead in cloud {3}",
+                        new Object[]{predicted, key, servers, cloud.getName()});
+                cloud.provision(template, servers);
+            }
+        }
+    }
+
+    // idle executors of any node with the label, plus the executors of servers still being created; the busy
+    // executors are part of the demand, so they are added by the caller
+    private static int countAvailableExecutors(Cloud cloud, Label label, List<SlaveTemplate> templates) {
+        int available = label == null ? 0 : label.getIdleExecutors();
+        for (SlaveTemplate t : templates) {
+            available += cloud.getCapacityLedger().getReserved(t) * t.getNumExecutors();
+        }
+        return available;
+    }
+
+    /**
+     * Predicts the number of busy and queued executors for the given label at the given time.
+     */
+    public synchronized double forecast(String label, Policy policy, long time) {
+        LabelDemand demand = getDemands().get(label);
+        return demand == null ? 0 : demand.forecast(policy, time);
+    }
+
+    public synchronized List<String> getLabels() {
+        return new ArrayList<String>(getDemands().keySet());
+    }
+
+    /**
+     * @return forecast against actual demand per label, for display
+     */
+    public synchronized List<ReportEntry> getReport() {
+        List<ReportEntry> report = new ArrayList<ReportEntry>();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, LabelDemand> e : getDemands().entrySet()) {
+            LabelDemand d = e.getValue();
+            long horizon = d.getHorizon();
+            report.add(new ReportEntry(e.getKey(), d.lastActual, d.ewma, d.forecast(Policy.SEASONAL, now + horizon),
+                    d.lastForecast, d.evaluated == 0 ? 0 : d.absoluteErrorSum / d.evaluated, d.evaluated, horizon));
+        }
+
+        Collections.sort(report, new Comparator<ReportEntry>() {
+            @Override
+            public int compare(ReportEntry o1, ReportEntry o2) {
+                return o1.getLabel().compareTo(o2.getLabel());
+            }
+        });
+        return report;
+    }
+
+    private static String key(Label label) {
+        return label == null ? "" : label.getExpression();
+    }
+
+    private static int bucket(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        return (c.get(Calendar.DAY_OF_WEEK) - 1) * 24 + c.get(Calendar.HOUR_OF_DAY);
+    }
+
+    private Map<String, LabelDemand> getDemands() {
+        if (demands == null) {
+            demands = load();
+        }
+        return demands;
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(), DemandForecaster.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, LabelDemand> load() {
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                return (Map<String, LabelDemand>) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the demand history, starting from scratch", e);
+            }
+        }
+        return new HashMap<String, LabelDemand>();
+    }
+
+    private void save() {
+        try {
+            getConfigFile().write(demands);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the demand history", e);
+        }
+    }
+
+    /**
+     * The policy and horizon the forecasts of a label are evaluated with.
+     */
+    static final class Evaluation {
+        private final Policy policy;
+        private final long horizonMillis;
+
+        Evaluation(Policy policy, long horizonMillis) {
+            this.policy = policy;
+            this.horizonMillis = horizonMillis;
+        }
+    }
+
+    /**
+     * Demand model of a single label.
+     */
+    private static final class LabelDemand {
+        private double ewma;
+        private final double[] seasonal = new double[BUCKETS];
+        private final int[] seasonalSamples = new int[BUCKETS];
+
+        // forecasts waiting to be compared with the actual demand
+        private final LinkedList<double[]> pending = new LinkedList<double[]>();
+        private int lastActual;
+        private double lastForecast;
+        private double absoluteErrorSum;
+        private long evaluated;
+        // the horizon of the last forecast which is evaluated, 0 if none was, e.g. in a history saved by an older version
+        private long horizon;
+
+        /**
+         * @param evaluation how the forecast is evaluated, or {@code null} if no policy is used
+         */
+        void record(int demand, Evaluation evaluation, long now) {
+            lastActual = demand;
+
+            // the horizon follows the boot time, so a forecast may be due before one made earlier
+            for (Iterator<double[]> it = pending.iterator(); it.hasNext(); ) {
+                double[] p = it.next();
+                if (p[0] <= now) {
+                    it.remove();
+                    lastForecast = p[1];
+                    absoluteErrorSum += Math.abs(p[1] - demand);
+                    evaluated++;
+                }
+            }
+
+            ewma = EWMA_ALPHA * demand + (1 - EWMA_ALPHA) * ewma;
+
+            int b = bucket(now);
+            seasonal[b] = seasonalSamples[b] == 0 ? demand : SEASONAL_ALPHA * demand + (1 - SEASONAL_ALPHA) * seasonal[b];
+            seasonalSamples[b]++;
+
+            // evaluate the forecast the provisioning is actually based on, made as far ahead
+            if (evaluation != null && evaluation.policy != Policy.NONE) {
+                horizon = evaluation.horizonMillis;
+                long due = now + horizon;
+                pending.addLast(new double[]{due, forecast(evaluation.policy, due)});
+            }
+        }
+
+        long getHorizon() {
+            return horizon <= 0 ? HORIZON_MILLIS : horizon;
+        }
+
+        double forecast(Policy policy, long time) {
+            switch (policy) {
+                case EWMA:
+                    return ewma;
+                case SEASONAL:
+                    int b = bucket(time);
+                    return seasonalSamples[b] == 0 ? ewma : seasonal[b];
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    public static final class ReportEntry {
+        private final String label;
+        private final int actual;
+        private final double movingAverage;
+        private final double seasonal;
+        private final double lastForecast;
+        private final double meanAbsoluteError;
+        private final long evaluated;
+        private final long horizonMillis;
+
+        ReportEntry(String label, int actual, double movingAverage, double seasonal, double lastForecast,
+                    double meanAbsoluteError, long evaluated, long horizonMillis) {
+            this.label = label;
+            this.actual = actual;
+            this.movingAverage = round(movingAverage);
+            this.seasonal = round(seasonal);
+            this.lastForecast = round(lastForecast);
+            this.meanAbsoluteError = round(meanAbsoluteError);
+            this.evaluated = evaluated;
+            this.horizonMillis = horizonMillis;
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 100) / 100.0;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getActual() {
+            return actual;
+        }
+
+        public double getMovingAverage() {
+            return movingAverage;
+        }
+
+        public double getSeasonal() {
+            return seasonal;
+        }
+
+        public double getLastForecast() {
+            return lastForecast;
+        }
+
+        public double getMeanAbsoluteError() {
+            return meanAbsoluteError;
+        }
+
+        public long getEvaluated() {
+            return evaluated;
+        }
+
+        /**
+         * @return how far ahead the forecasts are made and evaluated, in seconds
+         */
+        public long getHorizonSeconds() {
+            return TimeUnit.MILLISECONDS.toSeconds(horizonMillis);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.client.RestClientException;
+
+import java.io.IOException;
+
+/**
+ * The 1&amp;1 image operations needed to bake images, see {@link BakedImages}. Can be replaced by a fake to test
+ * baking without a 1&amp;1 account.
+ */
+public interface ImageEndpoint {
+
+    /**
+     * Starts creating an image of the given server.
+     * @return the ID of the new image
+     */
+    String createImage(String apiToken, String serverId, String name) throws RestClientException, IOException;
+
+    /**
+     * @return the state of the given image as reported by 1&amp;1, e.g. {@code ACTIVE} once it can be used
+     */
+    String getImageState(String apiToken, String imageId) throws RestClientException, IOException;
+
+    void deleteImage(String apiToken, String imageId) throws RestClientException, IOException;
+}
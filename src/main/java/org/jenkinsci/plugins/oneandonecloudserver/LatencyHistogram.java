@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets, recorded without locks.
+ *
+ * Each bucket counts the durations up to its bound which didn't fit into a lower bucket, so recording a duration only
+ * increments a single {@link LongAdder}, whose cells spread concurrent updates. The cumulative counts are computed
+ * when the histogram is read, which is rare.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Bounds of 1&amp;1 API requests, in milliseconds.
+     */
+    static final long[] API_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    /**
+     * Bounds of the phases of a server launch, in milliseconds.
+     */
+    static final long[] LAUNCH_BOUNDS = {5000, 10000, 30000, 60000, 120000, 300000, 600000, 1200000};
+
+    private final long[] bounds;
+    // one more than bounds, the last bucket takes everything above the highest bound
+    private final LongAdder[] buckets;
+    private final LongAdder sumMillis = new LongAdder();
+
+    LatencyHistogram(long[] bounds) {
+        this.bounds = bounds;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long millis) {
+        int i = 0;
+        while (i < bounds.length && millis > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumMillis.add(millis);
+    }
+
+    /**
+     * @return the bucket bounds in milliseconds, the implicit last bucket is unbounded
+     */
+    long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return the number of durations up to each bound, followed by the total count
+     */
+    long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    long getSumMillis() {
+        return sumMillis.sum();
+    }
+}
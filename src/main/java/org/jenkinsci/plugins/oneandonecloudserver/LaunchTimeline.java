@@ -0,0 +1,177 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The phases the last launch of a {@link Computer} went through, shown on its page and exported by its REST API,
+ * e.g. {@code /computer/<name>/api/json?tree=actions[phases[*]]}.
+ *
+ * Each phase records when it started and ended, and how often the launch polled during it: how many server listings
+ * it looked at while booting, and how many SSH connections it attempted. The appliance and instance size of the
+ * template are recorded too, so slow phases can be compared across them.
+ */
+@ExportedBean
+public final class LaunchTimeline implements Action {
+
+    private final String template;
+    private final String appliance;
+    private final String instanceSize;
+    private final long startedAt = System.currentTimeMillis();
+    private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+
+    LaunchTimeline(SlaveTemplate template) {
+        this.template = template == null ? null : template.getName();
+        this.appliance = template == null ? null : template.getApplianceId();
+        this.instanceSize = template == null ? null : template.getFixedInstanceSizeId();
+    }
+
+    /**
+     * Ends the current phase and starts the given one.
+     */
+    void enter(ServerLaunch.Phase phase, long now) {
+        Entry current = getCurrent();
+        if (current != null) {
+            current.endedAt = now;
+        }
+        entries.add(new Entry(phase, now));
+    }
+
+    /**
+     * Counts a poll of the current phase.
+     */
+    void poll(int count) {
+        Entry current = getCurrent();
+        if (current != null) {
+            current.polls.addAndGet(count);
+        }
+    }
+
+    private Entry getCurrent() {
+        return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+    }
+
+    @Exported
+    public String getTemplate() {
+        return template;
+    }
+
+    @Exported
+    public String getAppliance() {
+        return appliance;
+    }
+
+    @Exported
+    public String getInstanceSize() {
+        return instanceSize;
+    }
+
+    @Exported
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    @Exported
+    public List<Entry> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /**
+     * @return the time from the start of the launch to the start of its last phase, e.g. until the agent got online
+     */
+    public long getTotalMillis() {
+        Entry current = getCurrent();
+        return current == null ? 0 : current.startedAt - startedAt;
+    }
+
+    public long getTotalSeconds() {
+        return getTotalMillis() / 1000;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Launch Timeline";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "launch-timeline";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Entry e : entries) {
+            s.append(String.format("%-10s %6d s %5d polls%n", e.getPhase(), e.getDurationSeconds(), e.getPolls()));
+        }
+        return s.toString();
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry {
+        private final ServerLaunch.Phase phase;
+        private final long startedAt;
+        private volatile long endedAt;
+        private final AtomicInteger polls = new AtomicInteger();
+
+        private Entry(ServerLaunch.Phase phase, long startedAt) {
+            this.phase = phase;
+            this.startedAt = startedAt;
+        }
+
+        @Exported
+        public String getPhase() {
+            return phase.name();
+        }
+
+        @Exported
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        /**
+         * @return when the phase ended, or 0 if it is the current one
+         */
+        @Exported
+        public long getEndedAt() {
+            return endedAt;
+        }
+
+        /**
+         * @return how long the phase took, or has taken so far, or 0 if the launch ended with it
+         */
+        @Exported
+        public long getDurationMillis() {
+            if (phase == ServerLaunch.Phase.ONLINE || phase == ServerLaunch.Phase.FAILED) {
+                return 0;
+            }
+            return (endedAt == 0 ? System.currentTimeMillis() : endedAt) - startedAt;
+        }
+
+        public Date getStartedAtDate() {
+            return new Date(startedAt);
+        }
+
+        public long getDurationSeconds() {
+            return getDurationMillis() / 1000;
+        }
+
+        @Exported
+        public int getPolls() {
+            return polls.get();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import antlr.ANTLRException;
+import hudson.Util;
+import hudson.scheduler.CronTab;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Number of idle servers to keep around, depending on the time of day.
+ *
+ * Each line of the schedule has the form {@code <cron expression> = <count>}, for example
+ * {@code * 8-17 * * 1-5 = 4} keeps 4 idle servers during office hours. The first line whose
+ * cron expression matches the current minute wins. Empty lines and lines starting with {@code #} are ignored.
+ */
+public final class MinimumIdleSchedule {
+
+    private static final MinimumIdleSchedule EMPTY = new MinimumIdleSchedule(Collections.<Entry>emptyList());
+
+    private final List<Entry> entries;
+
+    private MinimumIdleSchedule(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line of the schedule can't be parsed
+     */
+    public static MinimumIdleSchedule parse(String schedule) {
+        schedule = Util.fixEmptyAndTrim(schedule);
+        if (schedule == null) {
+            return EMPTY;
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader br = new BufferedReader(new StringReader(schedule));
+        String line;
+        try {
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                entries.add(parseLine(line));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // reading from a string
+        }
+
+        return new MinimumIdleSchedule(entries);
+    }
+
+    private static Entry parseLine(String line) {
+        int separator = line.lastIndexOf('=');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected '<cron expression> = <count>' but got '" + line + "'");
+        }
+
+        int count;
+        try {
+            count = Integer.parseInt(line.substring(separator + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid count in '" + line + "'");
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must be a nonnegative number in '" + line + "'");
+        }
+
+        try {
+            return new Entry(new CronTab(line.substring(0, separator).trim()), count);
+        } catch (ANTLRException e) {
+            throw new IllegalArgumentException("Invalid cron expression in '" + line + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the count of the first entry matching the given time, or {@code defaultCount} if no entry matches
+     */
+    public int getMinimumIdle(Calendar time, int defaultCount) {
+        for (Entry entry : entries) {
+            if (entry.cronTab.check(time)) {
+                return entry.count;
+            }
+        }
+        return defaultCount;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private static final class Entry {
+        private final CronTab cronTab;
+        private final int count;
+
+        Entry(CronTab cronTab, int count) {
+            this.cronTab = cronTab;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Number of Jenkins nodes per cloud and per slave template, so that the local instance cap checks don't have to
+ * iterate over all nodes of Jenkins.
+ *
+ * The index is updated whenever a {@link Computer} of this plugin is created or removed, which is when its node is
+ * added to or removed from Jenkins. A periodic self-check compares it against the actual nodes and repairs it.
+ *
+ * Idle nodes can't be indexed that way, as computers become idle and busy all the time. They are counted for all
+ * templates in one scan over the computers, which is reused for a few seconds, so that a retention check of every
+ * computer doesn't scan all of them again. Adding or removing a node discards the scan.
+ */
+public final class NodeCountIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeCountIndex.class.getName());
+
+    private static final Set<String> NODES = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentMap<String, AtomicInteger> CLOUD_COUNTS = new ConcurrentHashMap<String, AtomicInteger>();
+    private static final ConcurrentMap<String, AtomicInteger> SLAVE_COUNTS = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private static final long IDLE_COUNTS_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // changed by every add and remove, so that an idle scan taken meanwhile is discarded
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+    private static volatile IdleCounts idleCounts;
+
+    private NodeCountIndex() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Adds a node to the index. Nodes not created by this plugin are ignored, as are nodes already in the index.
+     */
+    static void add(String nodeName) {
+        String cloudName = ServerName.getCloudName(nodeName);
+        if (cloudName != null && NODES.add(nodeName)) {
+            GENERATION.incrementAndGet();
+            counter(CLOUD_COUNTS, cloudName).incrementAndGet();
+            counter(SLAVE_COUNTS, slaveKey(cloudName, ServerName.getSlaveName(nodeName))).incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a node from the index, if it is part of it.
+     */
+    static void remove(String nodeName) {
+        if (NODES.remove(nodeName)) {
+            GENERATION.incrementAndGet();
+            String cloudName = ServerName.getCloudName(nodeName);
+            counter(CLOUD_COUNTS, cloudName).decrementAndGet();
+            counter(SLAVE_COUNTS, slaveKey(cloudName, ServerName.getSlaveName(nodeName))).decrementAndGet();
+        }
+    }
+
+    /**
+     * @return whether the given node is part of the index
+     */
+    static boolean contains(String nodeName) {
+        return NODES.contains(nodeName);
+    }
+
+    public static int countCloudNodes(String cloudName) {
+        AtomicInteger count = CLOUD_COUNTS.get(cloudName);
+        return count == null ? 0 : count.get();
+    }
+
+    public static int countSlaveNodes(String cloudName, String slaveName) {
+        AtomicInteger count = SLAVE_COUNTS.get(slaveKey(cloudName, slaveName));
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of nodes of the given slave template which don't run any build
+     */
+    public static int countIdleSlaveNodes(String cloudName, String slaveName) {
+        IdleCounts counts = idleCounts;
+        if (counts == null || !counts.isValid()) {
+            counts = new IdleCounts();
+            idleCounts = counts;
+        }
+        Integer count = counts.counts.get(slaveKey(cloudName, slaveName));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Brings the index in line with the actual Jenkins nodes.
+     * @return the number of nodes which had to be added to or removed from the index
+     */
+    static int resync() {
+        Set<String> actual = new HashSet<String>();
+        for (Node n : Jenkins.getInstance().getNodes()) {
+            if (ServerName.getCloudName(n.getNodeName()) != null) {
+                actual.add(n.getNodeName());
+            }
+        }
+
+        int repaired = 0;
+        for (String nodeName : actual) {
+            if (!NODES.contains(nodeName)) {
+                add(nodeName);
+                repaired++;
+            }
+        }
+        for (String nodeName : NODES) {
+            if (!actual.contains(nodeName)) {
+                remove(nodeName);
+                repaired++;
+            }
+        }
+
+        return repaired;
+    }
+
+    // cloud and slave names can't contain '-', so the key is unambiguous
+    private static String slaveKey(String cloudName, String slaveName) {
+        return cloudName + "-" + slaveName;
+    }
+
+    private static AtomicInteger counter(ConcurrentMap<String, AtomicInteger> counts, String key) {
+        AtomicInteger counter = counts.get(key);
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            counter = counts.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    private static final class IdleCounts {
+        private final int generation = GENERATION.get();
+        private final long timestamp = System.currentTimeMillis();
+        // by cloud and slave name
+        private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        IdleCounts() {
+            for (hudson.model.Computer c : Jenkins.getInstance().getComputers()) {
+                Node n = c.getNode();
+                String cloudName = n == null ? null : ServerName.getCloudName(n.getNodeName());
+                if (cloudName != null && c.isIdle()) {
+                    String key = slaveKey(cloudName, ServerName.getSlaveName(n.getNodeName()));
+                    Integer count = counts.get(key);
+                    counts.put(key, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        boolean isValid() {
+            return generation == GENERATION.get() && System.currentTimeMillis() - timestamp < IDLE_COUNTS_TTL_MILLIS;
+        }
+    }
+
+    @Extension
+    public static class SelfCheck extends AsyncPeriodicWork {
+
+        public SelfCheck() {
+            super("1&1 node count self-check");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return 5 * MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            int repaired = resync();
+            if (repaired > 0) {
+                LOGGER.log(Level.WARNING, "Node count index was out of sync, repaired {0} nodes", repaired);
+            }
+        }
+    }
+}
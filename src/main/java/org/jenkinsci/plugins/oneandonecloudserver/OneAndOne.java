@@ -1,13 +1,21 @@
 package org.jenkinsci.plugins.oneandonecloudserver;
 
+import com.oneandone.rest.POJO.Requests.CreateImageRequest;
+import com.oneandone.rest.POJO.Requests.CreateServerRequest;
+import com.oneandone.rest.POJO.Requests.UpdateStatusRequest;
 import com.oneandone.rest.POJO.Response.AvailableHardwareFlavour;
+import com.oneandone.rest.POJO.Response.ImageResponse;
 import com.oneandone.rest.POJO.Response.ServerAppliancesResponse;
 import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.oneandone.rest.POJO.Response.Types;
 import com.oneandone.rest.client.RestClientException;
 import com.oneandone.sdk.OneAndOneApi;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +30,27 @@ public class OneAndOne {
 
     private static final Logger LOGGER = Logger.getLogger(OneAndOne.class.getName());
 
+    private static final ConcurrentMap<String, OneAndOneApi> API_CLIENTS = new ConcurrentHashMap<String, OneAndOneApi>();
+
+    /**
+     * Returns the API client for the given token. A single long-lived client is shared per token, so that
+     * the connections of the underlying HTTP client are reused instead of being set up again for every call.
+     * @param apiToken the 1&1 API authorisation token
+     * @return the shared {@link OneAndOneApi} for the token
+     */
+    static OneAndOneApi getApiClient(String apiToken) {
+        OneAndOneApi apiClient = API_CLIENTS.get(apiToken);
+        if (apiClient == null) {
+            OneAndOneApi newApiClient = new OneAndOneApi();
+            newApiClient.setToken(apiToken);
+            apiClient = API_CLIENTS.putIfAbsent(apiToken, newApiClient);
+            if (apiClient == null) {
+                apiClient = newApiClient;
+            }
+        }
+        return apiClient;
+    }
+
     /**
      * Fetches all available server sizes.
      * @param apiToken the 1&1 API authorisation token
@@ -30,12 +59,14 @@ public class OneAndOne {
      * @throws IOException
      */
     static List<AvailableHardwareFlavour> getAvailableSizes(String apiToken) throws RestClientException, IOException {
-        OneAndOneApi apiClient = new OneAndOneApi();
-        apiClient.setToken(apiToken);
+        final OneAndOneApi apiClient = getApiClient(apiToken);
 
-        List<AvailableHardwareFlavour> availableSizes = apiClient.getServerApi().getAvailableFixedServers();
-
-        return availableSizes;
+        return ApiGate.forToken(apiToken).call("getAvailableFixedServers", "", new Callable<List<AvailableHardwareFlavour>>() {
+            @Override
+            public List<AvailableHardwareFlavour> call() throws Exception {
+                return apiClient.getServerApi().getAvailableFixedServers();
+            }
+        });
     }
 
     /**
@@ -47,22 +78,14 @@ public class OneAndOne {
      * @throws IOException
      */
     static List<ServerAppliancesResponse> getAvailableAppliances(String apiToken) throws RestClientException, IOException {
-        OneAndOneApi apiClient = new OneAndOneApi();
-        apiClient.setToken(apiToken);
+        final OneAndOneApi apiClient = getApiClient(apiToken);
 
-        List<ServerAppliancesResponse> availableAppliances = apiClient.getServerAppliancesApi().getServerAppliances(0, 0, null, null, null);
-
-        return availableAppliances;
-    }
-
-    private static class DestroyInfo {
-        public final String apiToken;
-        public final String serverId;
-
-        public DestroyInfo(String apiKey, String serverId) {
-            this.apiToken = apiKey;
-            this.serverId = serverId;
-        }
+        return ApiGate.forToken(apiToken).call("getServerAppliances", "", new Callable<List<ServerAppliancesResponse>>() {
+            @Override
+            public List<ServerAppliancesResponse> call() throws Exception {
+                return apiClient.getServerAppliancesApi().getServerAppliances(0, 0, null, null, null);
+            }
+        });
     }
 
     /**
@@ -72,10 +95,14 @@ public class OneAndOne {
      */
     static List<ServerResponse> getServers(String apiToken) throws RestClientException, IOException {
         LOGGER.log(Level.INFO, "Listing all servers");
-        OneAndOneApi apiClient = new OneAndOneApi();
-        apiClient.setToken(apiToken);
+        final OneAndOneApi apiClient = getApiClient(apiToken);
 
-        return apiClient.getServerApi().getAllServers(0, 0, null, null, null);
+        return ApiGate.forToken(apiToken).call("getAllServers", "", new Callable<List<ServerResponse>>() {
+            @Override
+            public List<ServerResponse> call() throws Exception {
+                return apiClient.getServerApi().getAllServers(0, 0, null, null, null);
+            }
+        });
     }
 
     /**
@@ -86,122 +113,152 @@ public class OneAndOne {
      * @throws RestClientException
      * @throws IOException
      */
-    static ServerResponse getServer(String apiToken, String serverId) throws RestClientException, IOException {
+    static ServerResponse getServer(String apiToken, final String serverId) throws RestClientException, IOException {
         LOGGER.log(Level.INFO, "Fetching server " + serverId);
-        OneAndOneApi apiClient = new OneAndOneApi();
-        apiClient.setToken(apiToken);
+        final OneAndOneApi apiClient = getApiClient(apiToken);
 
-        return apiClient.getServerApi().getServer(serverId);
+        return ApiGate.forToken(apiToken).call("getServer", serverId, new Callable<ServerResponse>() {
+            @Override
+            public ServerResponse call() throws Exception {
+                return apiClient.getServerApi().getServer(serverId);
+            }
+        });
     }
 
-    private static final List<DestroyInfo> toBeDestroyedServers = new ArrayList<DestroyInfo>();
-
-    // Sometimes servers have pending events during which you can't destroy them.
-    // One of such events is starting up a new server. Therefor, continuous attempts to
-    // destroy servers are being done in a separate thread.
-    private static final Thread serverDestroyer = new Thread(new Runnable() {
-        @Override
-        public void run() {
-
-            do {
-                String apiToken = null;
-                String previousPassword = null;
-                OneAndOneApi apiClient = null;
-                ServerResponse existingServer = null;
-                boolean failedToDestroy = false;
-
-                synchronized (toBeDestroyedServers) {
-                    Iterator<DestroyInfo> it = toBeDestroyedServers.iterator();
-                    while (it.hasNext()) {
-                        DestroyInfo di = it.next();
-
-                        // the list should be sorted by di.apiToken to prevent unnecessary OneAndOneApi recreation
-                        if (di.apiToken != apiToken) {
-                            apiToken = di.apiToken;
-                            try {
-                                apiClient = new OneAndOneApi();
-                                apiClient.setToken(di.apiToken);
-                            } catch (Exception e) {
-                                LOGGER.warning("Failed to instantiate 1&1 API client.");
-                                LOGGER.log(Level.WARNING, e.getMessage(), e);
-                            }
-                            existingServer = null;
-                        }
-
-                        try {
-                            LOGGER.info("Trying to destroy server " + di.serverId);
-                            apiClient.getServerApi().deleteServer(di.serverId, false);
-                            LOGGER.info("Server " + di.serverId + " is destroyed.");
-                            it.remove();
-                        } catch (Exception e) {
-                            // check if such server even existed in the first place
-                            if (existingServer == null) {
-                                try {
-                                    existingServer = apiClient.getServerApi().getServer(di.serverId);
-                                } catch (RestClientException rcex) {
-                                    LOGGER.warning("Failed to retrieve Server.");
-                                    LOGGER.log(Level.WARNING, rcex.getMessage(), rcex);
-                                } catch (IOException ioex) {
-                                    LOGGER.warning("Failed to retrieve Server.");
-                                    LOGGER.log(Level.WARNING, ioex.getMessage(), ioex);
-                                }
-                            }
-                            if (existingServer == null) {
-                                // The requested server doesn't exist, remove it from the toBeDestroyedServers iterator
-                                LOGGER.info(String.format("Server %s doesn't exist, removing it from the list.", di.serverId));
-                                it.remove();
-                                continue;
-                            }
-                            // The requested server might exist, so let's retry later
-                            failedToDestroy = true;
-                            LOGGER.warning("Failed to destroy server " + di.serverId);
-                            LOGGER.log(Level.WARNING, e.getMessage(), e);
-                        }
-                    }
-
-                    if (failedToDestroy) {
-                        LOGGER.info("Retrying to destroy the server in about 10 seconds");
-                        try {
-                            // sleep for 10 seconds, but wake up earlier if notified
-                            toBeDestroyedServers.wait(10000);
-                        } catch (InterruptedException e) {
-                            // ignore
-                        }
-                    } else {
-                        LOGGER.info("Waiting on more servers to destroy");
-                        while (toBeDestroyedServers.isEmpty()) {
-                            try {
-                                toBeDestroyedServers.wait();
-                            } catch (InterruptedException e) {
-                                // ignore
-                            }
-                        }
-                    }
-                }
-            } while (true);
-        }
-    });
+    /**
+     * Creates a new server.
+     * @param apiToken the API authentication token to use
+     * @param request the server to create
+     * @return the created server
+     * @throws RestClientException
+     * @throws IOException
+     */
+    static ServerResponse createServer(String apiToken, final CreateServerRequest request) throws RestClientException, IOException {
+        final OneAndOneApi apiClient = getApiClient(apiToken);
 
-    static void tryDestroyServerAsync(final String apiToken, final String serverId) {
-        synchronized (toBeDestroyedServers) {
-            LOGGER.info(String.format("Adding server to destroy %s", serverId));
+        return ApiGate.forToken(apiToken).call("createServer", new Callable<ServerResponse>() {
+            @Override
+            public ServerResponse call() throws Exception {
+                return apiClient.getServerApi().createServer(request);
+            }
+        });
+    }
 
-            toBeDestroyedServers.add(new DestroyInfo(apiToken, serverId));
+    /**
+     * Deletes the specified server.
+     * @param apiToken the API authentication token to use
+     * @param serverId the ID of the server to delete
+     * @throws RestClientException
+     * @throws IOException
+     */
+    static void deleteServer(String apiToken, final String serverId) throws RestClientException, IOException {
+        final OneAndOneApi apiClient = getApiClient(apiToken);
 
-            // sort by username
-            Collections.sort(toBeDestroyedServers, new Comparator<DestroyInfo>() {
-                @Override
-                public int compare(DestroyInfo o1, DestroyInfo o2) {
-                    return o1.apiToken.compareTo(o2.apiToken);
-                }
-            });
+        ApiGate.forToken(apiToken).call("deleteServer", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                apiClient.getServerApi().deleteServer(serverId, false);
+                return null;
+            }
+        });
+    }
 
-            toBeDestroyedServers.notifyAll();
+    /**
+     * Powers the specified server on or off, gracefully.
+     * @param apiToken the API authentication token to use
+     * @param serverId the ID of the server
+     * @param action {@link Types.ServerAction#POWER_ON} or {@link Types.ServerAction#POWER_OFF}
+     * @throws RestClientException
+     * @throws IOException
+     */
+    static void updateServerStatus(String apiToken, final String serverId, Types.ServerAction action) throws RestClientException, IOException {
+        final OneAndOneApi apiClient = getApiClient(apiToken);
+
+        final UpdateStatusRequest request = new UpdateStatusRequest();
+        request.setAction(action);
+        request.setMethod(Types.ServerActionMethod.SOFTWARE);
 
-            if (!serverDestroyer.isAlive()) {
-                serverDestroyer.start();
+        ApiGate.forToken(apiToken).call("updateServerStatus", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                apiClient.getServerApi().updateServerStatus(serverId, request);
+                return null;
             }
-        }
+        });
+    }
+
+    /**
+     * Creates an image of the specified server, once.
+     * @param apiToken the API authentication token to use
+     * @param serverId the ID of the server to create the image from
+     * @param name the name of the image
+     * @return the image being created
+     * @throws RestClientException
+     * @throws IOException
+     */
+    static ImageResponse createImage(String apiToken, String serverId, String name) throws RestClientException, IOException {
+        final OneAndOneApi apiClient = getApiClient(apiToken);
+
+        final CreateImageRequest request = new CreateImageRequest();
+        request.setServerId(serverId);
+        request.setName(name);
+        request.setDescription("Baked by the Jenkins 1&1 plugin");
+        request.setFrequency(Types.ImageFrequency.ONCE);
+        request.setNumImages(1);
+
+        return ApiGate.forToken(apiToken).call("createImage", new Callable<ImageResponse>() {
+            @Override
+            public ImageResponse call() throws Exception {
+                return apiClient.getImageApi().createImage(request);
+            }
+        });
+    }
+
+    /**
+     * Fetches information for the specified image.
+     * @param apiToken the API authentication token to use
+     * @param imageId the ID of the image to query
+     * @return information for the specified image
+     * @throws RestClientException
+     * @throws IOException
+     */
+    static ImageResponse getImage(String apiToken, final String imageId) throws RestClientException, IOException {
+        final OneAndOneApi apiClient = getApiClient(apiToken);
+
+        return ApiGate.forToken(apiToken).call("getImage", imageId, new Callable<ImageResponse>() {
+            @Override
+            public ImageResponse call() throws Exception {
+                return apiClient.getImageApi().getImage(imageId);
+            }
+        });
+    }
+
+    /**
+     * Deletes the specified image.
+     * @param apiToken the API authentication token to use
+     * @param imageId the ID of the image to delete
+     * @throws RestClientException
+     * @throws IOException
+     */
+    static void deleteImage(String apiToken, final String imageId) throws RestClientException, IOException {
+        final OneAndOneApi apiClient = getApiClient(apiToken);
+
+        ApiGate.forToken(apiToken).call("deleteImage", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                apiClient.getImageApi().deleteImage(imageId);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Destroys the specified server in the background, see {@link ServerDestroyer}.
+     * @param apiToken the API authentication token to use
+     * @param serverId the ID of the server to destroy
+     */
+    static void tryDestroyServerAsync(final String apiToken, final String serverId) {
+        ServerDestroyer.enqueue(apiToken, serverId);
     }
 
 }
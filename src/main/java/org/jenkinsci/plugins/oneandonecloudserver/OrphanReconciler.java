@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.oneandone.rest.POJO.Response.Types;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Destroys servers of the configured clouds which are not backed by a Jenkins node.
+ *
+ * Such orphans are left behind when Jenkins restarts while servers are waiting to be destroyed, or when a node is
+ * removed without its server. They keep being billed and count against the instance caps. A server is only
+ * destroyed once it was an orphan for {@link #GRACE_MILLIS}, and never while it is being launched, parked or
+ * destroyed.
+ */
+@Extension
+public class OrphanReconciler extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(OrphanReconciler.class.getName());
+
+    /**
+     * How long a server must be without a node before it is destroyed.
+     */
+    static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(OrphanReconciler.class.getName() + ".graceMinutes", 15));
+
+    /**
+     * When each orphan was first seen, by server ID.
+     */
+    private final Map<String, Long> firstSeen = new HashMap<String, Long>();
+
+    private volatile int recoveredServers;
+    private volatile double recoveredHourlyCost;
+    private volatile int orphans;
+
+    public OrphanReconciler() {
+        super("1&1 orphan server reconciler");
+    }
+
+    public static OrphanReconciler get() {
+        return Jenkins.getInstance().getExtensionList(OrphanReconciler.class).get(0);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * MIN;
+    }
+
+    @Override
+    protected synchronized void execute(TaskListener listener) {
+        long now = System.currentTimeMillis();
+        Set<String> seen = new HashSet<String>();
+
+        for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof Cloud)) {
+                continue;
+            }
+
+            Cloud cloud = (Cloud) c;
+            ServerInventory inventory;
+            try {
+                inventory = ServerInventory.get(cloud.getApiToken());
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to list the servers of cloud " + cloud.getName(), e);
+                // keep the orphans of this cloud, they are checked again next time
+                for (String serverId : firstSeen.keySet()) {
+                    seen.add(serverId);
+                }
+                continue;
+            }
+
+            for (ServerResponse server : inventory.getServers()) {
+                if (!isOrphan(cloud, server)) {
+                    continue;
+                }
+
+                seen.add(server.getId());
+                Long since = firstSeen.get(server.getId());
+                if (since == null) {
+                    LOGGER.log(Level.INFO, "Server {0} has no node, destroying it unless one shows up", server.getName());
+                    firstSeen.put(server.getId(), now);
+                } else if (now - since >= GRACE_MILLIS) {
+                    recover(cloud, server);
+                }
+            }
+        }
+
+        // servers which got a node again, or are gone
+        Iterator<String> it = firstSeen.keySet().iterator();
+        while (it.hasNext()) {
+            if (!seen.contains(it.next())) {
+                it.remove();
+            }
+        }
+        orphans = firstSeen.size();
+    }
+
+    private static boolean isOrphan(Cloud cloud, ServerResponse server) {
+        return ServerName.isServerInstanceOfCloud(server.getName(), cloud.getName())
+                && !server.getStatus().getState().equals(Types.ServerState.REMOVING)
+                && Jenkins.getInstance().getNode(server.getName()) == null
+                && !ServerLaunch.isUnregistered(server.getName())
+                && !ParkedServers.isParked(server.getId())
+                && !ServerDestroyer.isPending(cloud.getApiToken(), server.getId());
+    }
+
+    private void recover(Cloud cloud, ServerResponse server) {
+        SlaveTemplate template = cloud.getTemplate(ServerName.getSlaveName(server.getName()));
+        double hourlyCost = template == null ? 0 : template.getHourlyCost();
+
+        LOGGER.log(Level.WARNING, "Destroying server {0} of cloud {1}, it has no node for more than {2} minutes",
+                new Object[]{server.getName(), cloud.getName(), TimeUnit.MILLISECONDS.toMinutes(GRACE_MILLIS)});
+        OneAndOne.tryDestroyServerAsync(cloud.getApiToken(), server.getId());
+
+        firstSeen.remove(server.getId());
+        recoveredServers++;
+        recoveredHourlyCost += hourlyCost;
+    }
+
+    /**
+     * @return the number of orphans destroyed since Jenkins started
+     */
+    public int getRecoveredServers() {
+        return recoveredServers;
+    }
+
+    /**
+     * @return the summed hourly cost of the orphans destroyed since Jenkins started, as configured per template
+     */
+    public double getRecoveredHourlyCost() {
+        return Math.round(recoveredHourlyCost * 100) / 100.0;
+    }
+
+    /**
+     * @return the number of servers currently without a node, which are destroyed after the grace period
+     */
+    public int getOrphans() {
+        return orphans;
+    }
+}
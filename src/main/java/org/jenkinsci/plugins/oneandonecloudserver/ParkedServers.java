@@ -0,0 +1,301 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.Types;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Idle servers which were powered off instead of destroyed, for templates with a {@link SlaveTemplate#getParkedLimit()}.
+ *
+ * A parked server has no Jenkins node, but still counts against the instance caps, as it keeps its disk and IP.
+ * When a template needs a new server, a parked one is powered on again before a new one is created, see
+ * {@link CapacityLedger#tryReserve}. A server can only be claimed once it's powered off and its old node was
+ * removed, so that it isn't resumed under a name which still belongs to the old node. Parked servers are destroyed after {@link SlaveTemplate#getMaxParkedMinutes()},
+ * or when their template no longer parks servers. The registry is saved to disk, so parked servers aren't mistaken
+ * for orphans after a restart.
+ *
+ * Counting is lock-free, as it's part of the instance cap checks. Changes are synchronized on this class.
+ */
+public final class ParkedServers {
+
+    private static final Logger LOGGER = Logger.getLogger(ParkedServers.class.getName());
+
+    // by server ID
+    private static volatile ConcurrentMap<String, Parked> parked;
+
+    private ParkedServers() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Powers off the server of the given node and parks it, if its template has room for another parked server.
+     * @return whether the server was parked, otherwise it is destroyed along with its node
+     */
+    static boolean tryPark(Slave slave) {
+        Cloud cloud = slave.getCloud();
+        SlaveTemplate template = slave.getTemplate();
+        if (cloud == null || template == null || template.getParkedLimit() == 0) {
+            return false;
+        }
+
+        Parked p = new Parked(cloud.getName(), template.getName(), slave.getServerId(), slave.getNodeName());
+        synchronized (ParkedServers.class) {
+            if (countTemplate(cloud.getName(), template.getName()) >= template.getParkedLimit()) {
+                return false;
+            }
+            // counted before powering off, so that idle servers terminated at the same time don't exceed the limit,
+            // but not claimable yet
+            getParked().put(p.serverId, p);
+        }
+
+        try {
+            OneAndOne.updateServerStatus(cloud.getApiToken(), p.serverId, Types.ServerAction.POWER_OFF);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to power off server " + p.serverName + ", destroying it instead", e);
+            synchronized (ParkedServers.class) {
+                getParked().remove(p.serverId);
+            }
+            return false;
+        }
+
+        synchronized (ParkedServers.class) {
+            p.poweringOff = false;
+            save();
+        }
+        LOGGER.log(Level.INFO, "Parked server {0} of cloud {1}", new Object[]{p.serverName, cloud.getName()});
+        return true;
+    }
+
+    /**
+     * Called once the node of the given server was removed from Jenkins, after which a parked server can be claimed.
+     * @return whether the server is parked, so it must not be destroyed along with its node
+     */
+    static boolean onNodeRemoved(String serverId) {
+        synchronized (ParkedServers.class) {
+            Parked p = getParked().get(serverId);
+            if (p == null) {
+                return false;
+            }
+            if (p.nodeAttached) {
+                p.nodeAttached = false;
+                save();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Takes the longest parked server of the given template out of the registry, to power it on again.
+     * @return the server, or {@code null} if none of the template is parked
+     */
+    static Parked claim(String cloudName, String templateName) {
+        synchronized (ParkedServers.class) {
+            Parked oldest = null;
+            for (Parked p : getParked().values()) {
+                if (p.isOf(cloudName, templateName) && p.isClaimable()
+                        && (oldest == null || p.parkedAt < oldest.parkedAt)) {
+                    oldest = p;
+                }
+            }
+
+            if (oldest != null) {
+                getParked().remove(oldest.serverId);
+                save();
+            }
+            return oldest;
+        }
+    }
+
+    /**
+     * @return whether the given server is parked, so it must not be destroyed along with its node
+     */
+    public static boolean isParked(String serverId) {
+        return getParked().containsKey(serverId);
+    }
+
+    /**
+     * @return whether a parked server of the given template can be claimed
+     */
+    public static boolean hasClaimable(String cloudName, String templateName) {
+        for (Parked p : getParked().values()) {
+            if (p.isOf(cloudName, templateName) && p.isClaimable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of parked servers of the given cloud
+     */
+    public static int countCloud(String cloudName) {
+        int count = 0;
+        for (Parked p : getParked().values()) {
+            if (p.cloudName.equals(cloudName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of parked servers of the given template
+     */
+    public static int countTemplate(String cloudName, String templateName) {
+        int count = 0;
+        for (Parked p : getParked().values()) {
+            if (p.isOf(cloudName, templateName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ConcurrentMap<String, Parked> getParked() {
+        ConcurrentMap<String, Parked> map = parked;
+        if (map == null) {
+            synchronized (ParkedServers.class) {
+                map = parked;
+                if (map == null) {
+                    parked = map = load();
+                }
+            }
+        }
+        return map;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(), ParkedServers.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, Parked> load() {
+        ConcurrentMap<String, Parked> map = new ConcurrentHashMap<String, Parked>();
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                for (Parked p : (List<Parked>) file.read()) {
+                    map.put(p.serverId, p);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the parked servers, they are destroyed as orphans", e);
+            }
+        }
+        return map;
+    }
+
+    // callers hold the lock of this class
+    private static void save() {
+        try {
+            getConfigFile().write(new ArrayList<Parked>(getParked().values()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the parked servers", e);
+        }
+    }
+
+    static final class Parked {
+        private final String cloudName;
+        private final String templateName;
+        private final String serverId;
+        private final String serverName;
+        private final long parkedAt = System.currentTimeMillis();
+        // both false when loaded from a file written before they were added, as XStream skips the initializers
+        private volatile boolean poweringOff = true;
+        private volatile boolean nodeAttached = true;
+
+        private Parked(String cloudName, String templateName, String serverId, String serverName) {
+            this.cloudName = cloudName;
+            this.templateName = templateName;
+            this.serverId = serverId;
+            this.serverName = serverName;
+        }
+
+        String getServerId() {
+            return serverId;
+        }
+
+        String getServerName() {
+            return serverName;
+        }
+
+        private boolean isClaimable() {
+            return !poweringOff && !nodeAttached;
+        }
+
+        private boolean isOf(String cloudName, String templateName) {
+            return this.cloudName.equals(cloudName) && this.templateName.equals(templateName);
+        }
+    }
+
+    /**
+     * Destroys parked servers which were parked for too long, or whose template no longer parks servers.
+     */
+    @Extension
+    public static class Expiry extends AsyncPeriodicWork {
+
+        public Expiry() {
+            super("1&1 parked server expiry");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            long now = System.currentTimeMillis();
+
+            for (Parked p : getParked().values()) {
+                hudson.slaves.Cloud c = Jenkins.getInstance().getCloud(p.cloudName);
+                if (!(c instanceof Cloud)) {
+                    // without the cloud there is no API token, the server is left to be cleaned up by hand
+                    LOGGER.log(Level.WARNING, "Forgetting parked server {0}, its cloud was removed", p.serverName);
+                    forget(p);
+                    continue;
+                }
+
+                if (p.nodeAttached && Jenkins.getInstance().getNode(p.serverName) == null) {
+                    // the node was removed without being noticed, e.g. by a restart
+                    onNodeRemoved(p.serverId);
+                }
+
+                Cloud cloud = (Cloud) c;
+                SlaveTemplate template = cloud.getTemplate(p.templateName);
+                if (template != null && template.getParkedLimit() > 0
+                        && now - p.parkedAt < TimeUnit.MINUTES.toMillis(template.getMaxParkedMinutes())) {
+                    continue;
+                }
+
+                // claimed servers are powered on again, so only destroy the server if it's still parked
+                if (forget(p)) {
+                    LOGGER.log(Level.INFO, "Destroying parked server {0} of cloud {1}", new Object[]{p.serverName, p.cloudName});
+                    OneAndOne.tryDestroyServerAsync(cloud.getApiToken(), p.serverId);
+                }
+            }
+        }
+
+        private static boolean forget(Parked p) {
+            synchronized (ParkedServers.class) {
+                if (getParked().remove(p.serverId, p)) {
+                    save();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,892 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Executor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable history of the servers provisioned by all clouds, kept in {@code <jenkins home>/oneandone-history/}.
+ *
+ * Every server lifecycle event is appended to an event log, one tab separated line per event. The log is rotated
+ * once it exceeds {@link #MAX_SEGMENT_BYTES} and only the last {@link #SEGMENTS} segments are kept, so its size is
+ * bounded. The events are also aggregated into hourly rollups per cloud and template, which are kept for
+ * {@link #RETENTION_DAYS} and can be queried with {@link #query}. Rollups and the state of the live servers are
+ * saved every minute; after a restart, the events logged since the last save are replayed.
+ *
+ * Events are recorded on build executor threads, so recording only appends to the open log. Saving and rotating
+ * happen on the {@link Saver} thread, which only holds the lock to take a copy of the state and to switch segments.
+ * Once an hour, the Saver also forgets servers which are no longer listed by their cloud, or whose cloud is gone,
+ * as their destruction might never be recorded.
+ *
+ * Boot times are only rolled up for new servers, utilization (busy time over lifetime) once a server is destroyed.
+ */
+public final class ProvisioningHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningHistory.class.getName());
+
+    static final long MAX_SEGMENT_BYTES = Long.getLong(ProvisioningHistory.class.getName() + ".maxSegmentBytes", 4L * 1024 * 1024);
+    static final int SEGMENTS = 3;
+    static final int RETENTION_DAYS = Integer.getInteger(ProvisioningHistory.class.getName() + ".retentionDays", 90);
+
+    /**
+     * Days after their last event at which servers which can't be looked up in their cloud are forgotten.
+     */
+    static final int STALE_SERVER_DAYS = Integer.getInteger(ProvisioningHistory.class.getName() + ".staleServerDays", 7);
+
+    /**
+     * Days of rollups used to seed the {@link BootTimeStats} after a restart.
+     */
+    private static final int SEED_DAYS = 7;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Bounds of the utilization buckets, in percent.
+     */
+    static final long[] UTILIZATION_BOUNDS = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100};
+
+    enum EventType {
+        CREATE, ONLINE, FIRST_BUILD, IDLE, TERMINATE, DESTROY
+    }
+
+    // guarded by ProvisioningHistory.class
+    private static ProvisioningHistory instance;
+
+    private final File dir;
+    private State state;
+    private boolean dirty;
+    // the open current segment and its size, or null until the next event
+    private OutputStream log;
+    private long logBytes;
+
+    private ProvisioningHistory(File dir) {
+        this.dir = dir;
+    }
+
+    static synchronized ProvisioningHistory get() {
+        if (instance == null) {
+            instance = new ProvisioningHistory(new File(Jenkins.getInstance().getRootDir(), "oneandone-history"));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Records a new server, before it boots.
+     */
+    static void onCreated(String cloudName, String templateName, String serverId, String serverName) {
+        get().append(EventType.CREATE, cloudName, templateName, serverId, serverName, 0);
+    }
+
+    /**
+     * Records a server whose agent got online.
+     * @param millis the time it took since the launch started
+     */
+    static void onOnline(Slave slave, long millis) {
+        get().append(EventType.ONLINE, slave, millis);
+    }
+
+    /**
+     * Records a server whose node is terminated, after which it is destroyed or parked.
+     */
+    static void onTerminated(Slave slave) {
+        get().append(EventType.TERMINATE, slave, System.currentTimeMillis() - slave.getStartTimeMillis());
+    }
+
+    /**
+     * Records a destroyed server. Servers the history doesn't know, e.g. orphans from before it existed, are ignored.
+     */
+    static void onDestroyed(String serverId) {
+        ProvisioningHistory history = get();
+        ServerRecord server;
+        synchronized (history) {
+            server = history.state.servers.get(serverId);
+        }
+        if (server != null) {
+            history.append(EventType.DESTROY, server.cloudName, server.templateName, serverId, server.serverName,
+                    System.currentTimeMillis() - server.createdAt);
+        }
+    }
+
+    private void append(EventType type, Slave slave, long value) {
+        append(type, slave.getCloudName(), ServerName.getSlaveName(slave.getNodeName()), slave.getServerId(),
+                slave.getNodeName(), value);
+    }
+
+    private synchronized void append(EventType type, String cloudName, String templateName, String serverId,
+                                     String serverName, long value) {
+        Event event = new Event(++state.lastSeq, System.currentTimeMillis(), type, cloudName, templateName, serverId,
+                serverName, value);
+        apply(event);
+        dirty = true;
+
+        try {
+            if (log == null) {
+                File segment = getSegment(0);
+                logBytes = segment.length();
+                log = new FileOutputStream(segment, true);
+            }
+            byte[] line = event.toLine().getBytes(StandardCharsets.UTF_8);
+            log.write(line);
+            logBytes += line.length;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to append to the provisioning history", e);
+            closeLog();
+        }
+    }
+
+    // updates the live servers and rollups, for new and replayed events alike
+    private void apply(Event event) {
+        ServerRecord server = state.servers.get(event.serverId);
+        if (server == null) {
+            // servers which were created before the history existed are tracked from their first event on
+            server = new ServerRecord(event.cloudName, event.templateName, event.serverName, event.time);
+            state.servers.put(event.serverId, server);
+        }
+        server.lastEventAt = event.time;
+        Rollup rollup = rollupFor(event.cloudName, event.templateName, event.time);
+
+        switch (event.type) {
+            case CREATE:
+                server.created = true;
+                rollup.creates++;
+                break;
+            case ONLINE:
+                if (server.created && server.onlineAt == 0) {
+                    rollup.onlines++;
+                    record(rollup.bootCounts, LatencyHistogram.LAUNCH_BOUNDS, event.value);
+                    rollup.bootMillis += event.value;
+                }
+                if (server.onlineAt == 0) {
+                    server.onlineAt = event.time;
+                }
+                break;
+            case FIRST_BUILD:
+                rollup.firstBuilds++;
+                break;
+            case IDLE:
+                server.busyMillis += event.value;
+                rollup.busyMillis += event.value;
+                break;
+            case TERMINATE:
+                rollup.terminates++;
+                break;
+            case DESTROY:
+                state.servers.remove(event.serverId);
+                rollup.destroys++;
+                rollup.lifetimeMillis += event.value;
+                if (event.value > 0) {
+                    record(rollup.utilizationCounts, UTILIZATION_BOUNDS, Math.min(100, server.busyMillis * 100 / event.value));
+                }
+                break;
+        }
+    }
+
+    private Rollup rollupFor(String cloudName, String templateName, long time) {
+        String key = cloudName + "-" + templateName + "-" + (time / HOUR_MILLIS);
+        Rollup rollup = state.rollups.get(key);
+        if (rollup == null) {
+            rollup = new Rollup(cloudName, templateName, time / HOUR_MILLIS * HOUR_MILLIS);
+            state.rollups.put(key, rollup);
+        }
+        return rollup;
+    }
+
+    private static void record(long[] counts, long[] bounds, long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts[i]++;
+    }
+
+    /**
+     * Aggregates the rollups of the given template in the given time range.
+     * @param templateName the template, or {@code null} for all templates of the cloud
+     */
+    public synchronized Summary query(String cloudName, String templateName, long from, long to) {
+        Summary summary = new Summary();
+        for (Rollup rollup : state.rollups.values()) {
+            if (rollup.cloudName.equals(cloudName)
+                    && (templateName == null || rollup.templateName.equals(templateName))
+                    && rollup.hour + HOUR_MILLIS > from && rollup.hour < to) {
+                summary.add(rollup);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Reads the logged events of the given cloud in the given time range, oldest first. Only events still in the
+     * event log are returned, older ones are only available as rollups.
+     * @param templateName the template, or {@code null} for all templates of the cloud
+     */
+    public List<Event> getEvents(String cloudName, String templateName, long from, long to) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        synchronized (this) {
+            for (int i = SEGMENTS - 1; i >= 0; i--) {
+                for (Event event : read(getSegment(i))) {
+                    if (event.cloudName.equals(cloudName)
+                            && (templateName == null || event.templateName.equals(templateName))
+                            && event.time >= from && event.time < to) {
+                        events.add(event);
+                    }
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Summarizes each configured template over the last {@link #SEED_DAYS} days, for the status page.
+     */
+    public List<ReportEntry> getReport() {
+        long now = System.currentTimeMillis();
+        List<ReportEntry> report = new ArrayList<ReportEntry>();
+        for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+            if (c instanceof Cloud) {
+                for (SlaveTemplate t : ((Cloud) c).getTemplates()) {
+                    report.add(new ReportEntry(c.name, t.getName(),
+                            query(c.name, t.getName(), now - TimeUnit.DAYS.toMillis(SEED_DAYS), now)));
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @return the number of servers the history considers alive, i.e. created or seen, but not yet destroyed
+     */
+    public synchronized int countLiveServers() {
+        return state.servers.size();
+    }
+
+    private synchronized void onBuildStarted(Slave slave) {
+        ServerRecord server = state.servers.get(slave.getServerId());
+        if (server == null) {
+            return;
+        }
+
+        if (server.busyExecutors++ == 0) {
+            server.busySince = System.currentTimeMillis();
+        }
+        if (!server.built) {
+            server.built = true;
+            append(EventType.FIRST_BUILD, slave, server.onlineAt == 0 ? 0 : System.currentTimeMillis() - server.onlineAt);
+        }
+    }
+
+    private synchronized void onBuildCompleted(Slave slave) {
+        ServerRecord server = state.servers.get(slave.getServerId());
+        if (server == null || server.busyExecutors == 0) {
+            return;
+        }
+
+        if (--server.busyExecutors == 0) {
+            append(EventType.IDLE, slave, System.currentTimeMillis() - server.busySince);
+        }
+    }
+
+    private File getSegment(int i) {
+        return new File(dir, i == 0 ? "events.log" : "events.log." + i);
+    }
+
+    // callers hold the lock of this history
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the provisioning history", e);
+            }
+            log = null;
+        }
+    }
+
+    // callers hold the lock of this history, the next event opens the new current segment
+    private void rotate() throws IOException {
+        closeLog();
+        for (int i = SEGMENTS - 1; i > 0; i--) {
+            File from = getSegment(i - 1);
+            File to = getSegment(i);
+            if (to.exists() && !to.delete()) {
+                throw new IOException("Failed to delete " + to);
+            }
+            if (from.exists() && !from.renameTo(to)) {
+                throw new IOException("Failed to move " + from + " to " + to);
+            }
+        }
+    }
+
+    private static List<Event> read(File segment) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        if (!segment.exists()) {
+            return events;
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(segment), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Event event = Event.parse(line);
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return events;
+    }
+
+    private XmlFile getStateFile() {
+        return new XmlFile(new File(dir, "state.xml"));
+    }
+
+    private synchronized void load() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOGGER.log(Level.WARNING, "Failed to create {0}", dir);
+        }
+
+        XmlFile file = getStateFile();
+        if (file.exists()) {
+            try {
+                state = (State) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the provisioning history, rebuilding it from the event log", e);
+            }
+        }
+        if (state == null) {
+            state = new State();
+        }
+
+        int replayed = 0;
+        try {
+            for (int i = SEGMENTS - 1; i >= 0; i--) {
+                for (Event event : read(getSegment(i))) {
+                    if (event.seq > state.lastSeq) {
+                        state.lastSeq = event.seq;
+                        apply(event);
+                        replayed++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to replay the provisioning history", e);
+        }
+        if (replayed > 0) {
+            LOGGER.log(Level.INFO, "Replayed {0} provisioning events", replayed);
+            dirty = true;
+        }
+
+        seedBootTimeStats();
+    }
+
+    // so that template selection and forecasting don't start from scratch after a restart
+    private void seedBootTimeStats() {
+        long now = System.currentTimeMillis();
+        for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof Cloud)) {
+                continue;
+            }
+            for (SlaveTemplate t : ((Cloud) c).getTemplates()) {
+                Summary summary = query(c.name, t.getName(), now - TimeUnit.DAYS.toMillis(SEED_DAYS), now);
+                if (summary.getOnlines() > 0) {
+                    BootTimeStats.seed(c.name, t, summary.getAverageBootMillis());
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the state if it changed, and rotates the log if the current segment is full. Runs on the {@link Saver}
+     * thread, the state is written from a copy, without holding the lock.
+     */
+    private void saveAndRotate(Map<String, ServerInventory> inventories) {
+        // the inventories by cloud name, null if the listing failed, or no map if servers aren't pruned this time
+        State snapshot;
+        synchronized (this) {
+            prune(inventories);
+            if (!dirty && logBytes < MAX_SEGMENT_BYTES) {
+                return;
+            }
+            snapshot = state.copy();
+            dirty = false;
+        }
+
+        try {
+            getStateFile().write(snapshot);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the provisioning history", e);
+            synchronized (this) {
+                dirty = true;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            // the events since the snapshot stay in the next segment, so they are still replayed
+            if (logBytes >= MAX_SEGMENT_BYTES) {
+                try {
+                    rotate();
+                    logBytes = 0;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to rotate the provisioning history", e);
+                }
+            }
+        }
+    }
+
+    // callers hold the lock of this history
+    private void prune(Map<String, ServerInventory> inventories) {
+        long now = System.currentTimeMillis();
+        long oldest = (now - TimeUnit.DAYS.toMillis(RETENTION_DAYS)) / HOUR_MILLIS * HOUR_MILLIS;
+        Iterator<Rollup> it = state.rollups.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().hour < oldest) {
+                it.remove();
+                dirty = true;
+            }
+        }
+
+        if (inventories == null) {
+            return;
+        }
+        int pruned = 0;
+        Iterator<Map.Entry<String, ServerRecord>> servers = state.servers.entrySet().iterator();
+        while (servers.hasNext()) {
+            Map.Entry<String, ServerRecord> e = servers.next();
+            ServerRecord server = e.getValue();
+            boolean stale;
+            if (!inventories.containsKey(server.cloudName)) {
+                // the cloud is gone
+                stale = now - server.lastEventAt > TimeUnit.DAYS.toMillis(STALE_SERVER_DAYS);
+            } else {
+                ServerInventory inventory = inventories.get(server.cloudName);
+                // servers created while the listing was taken might be missing from it
+                stale = inventory != null
+                        && inventory.getServer(e.getKey()) == null
+                        && server.lastEventAt < inventory.getTimestamp() - HOUR_MILLIS;
+            }
+            if (stale) {
+                servers.remove();
+                pruned++;
+            }
+        }
+        if (pruned > 0) {
+            LOGGER.log(Level.FINE, "Forgot {0} servers which are gone", pruned);
+            dirty = true;
+        }
+    }
+
+    private static final class State {
+        private long lastSeq;
+        // by server ID
+        private final Map<String, ServerRecord> servers = new HashMap<String, ServerRecord>();
+        // by cloud, template and hour
+        private final Map<String, Rollup> rollups = new HashMap<String, Rollup>();
+
+        private State copy() {
+            State copy = new State();
+            copy.lastSeq = lastSeq;
+            for (Map.Entry<String, ServerRecord> e : servers.entrySet()) {
+                copy.servers.put(e.getKey(), new ServerRecord(e.getValue()));
+            }
+            for (Map.Entry<String, Rollup> e : rollups.entrySet()) {
+                copy.rollups.put(e.getKey(), new Rollup(e.getValue()));
+            }
+            return copy;
+        }
+    }
+
+    private static final class ServerRecord {
+        private final String cloudName;
+        private final String templateName;
+        private final String serverName;
+        private final long createdAt;
+        private boolean created;
+        private long onlineAt;
+        private boolean built;
+        private long busyMillis;
+        private long lastEventAt;
+        private transient int busyExecutors;
+        private transient long busySince;
+
+        ServerRecord(String cloudName, String templateName, String serverName, long createdAt) {
+            this.cloudName = cloudName;
+            this.templateName = templateName;
+            this.serverName = serverName;
+            this.createdAt = createdAt;
+            this.lastEventAt = createdAt;
+        }
+
+        // the transient fields aren't saved anyway
+        private ServerRecord(ServerRecord other) {
+            this(other.cloudName, other.templateName, other.serverName, other.createdAt);
+            created = other.created;
+            onlineAt = other.onlineAt;
+            built = other.built;
+            busyMillis = other.busyMillis;
+            lastEventAt = other.lastEventAt;
+        }
+    }
+
+    private static final class Rollup {
+        private final String cloudName;
+        private final String templateName;
+        private final long hour;
+        private int creates;
+        private int onlines;
+        private int firstBuilds;
+        private int terminates;
+        private int destroys;
+        private long bootMillis;
+        private long busyMillis;
+        private long lifetimeMillis;
+        private final long[] bootCounts = new long[LatencyHistogram.LAUNCH_BOUNDS.length + 1];
+        private final long[] utilizationCounts = new long[UTILIZATION_BOUNDS.length + 1];
+
+        Rollup(String cloudName, String templateName, long hour) {
+            this.cloudName = cloudName;
+            this.templateName = templateName;
+            this.hour = hour;
+        }
+
+        private Rollup(Rollup other) {
+            this(other.cloudName, other.templateName, other.hour);
+            creates = other.creates;
+            onlines = other.onlines;
+            firstBuilds = other.firstBuilds;
+            terminates = other.terminates;
+            destroys = other.destroys;
+            bootMillis = other.bootMillis;
+            busyMillis = other.busyMillis;
+            lifetimeMillis = other.lifetimeMillis;
+            System.arraycopy(other.bootCounts, 0, bootCounts, 0, bootCounts.length);
+            System.arraycopy(other.utilizationCounts, 0, utilizationCounts, 0, utilizationCounts.length);
+        }
+    }
+
+    /**
+     * A logged lifecycle event of a server.
+     */
+    public static final class Event {
+        private final long seq;
+        private final long time;
+        private final EventType type;
+        private final String cloudName;
+        private final String templateName;
+        private final String serverId;
+        private final String serverName;
+        private final long value;
+
+        private Event(long seq, long time, EventType type, String cloudName, String templateName, String serverId,
+                      String serverName, long value) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.cloudName = cloudName;
+            this.templateName = templateName;
+            this.serverId = serverId;
+            this.serverName = serverName;
+            this.value = value;
+        }
+
+        // names and IDs never contain tabs
+        private String toLine() {
+            return seq + "\t" + time + "\t" + type + "\t" + cloudName + "\t" + templateName + "\t" + serverId + "\t"
+                    + serverName + "\t" + value + "\n";
+        }
+
+        private static Event parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 8) {
+                // e.g. the last line of a segment which was cut off by a crash
+                return null;
+            }
+            try {
+                return new Event(Long.parseLong(fields[0]), Long.parseLong(fields[1]), EventType.valueOf(fields[2]),
+                        fields[3], fields[4], fields[5], fields[6], Long.parseLong(fields[7]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getType() {
+            return type.name();
+        }
+
+        public String getCloudName() {
+            return cloudName;
+        }
+
+        public String getTemplateName() {
+            return templateName;
+        }
+
+        public String getServerId() {
+            return serverId;
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        /**
+         * @return the boot time of {@code ONLINE}, the time since online of {@code FIRST_BUILD}, the busy time of
+         * {@code IDLE}, or the lifetime of {@code TERMINATE} and {@code DESTROY} events, in milliseconds
+         */
+        public long getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Rollups aggregated over a time range.
+     */
+    public static final class Summary {
+        private int creates;
+        private int onlines;
+        private int firstBuilds;
+        private int terminates;
+        private int destroys;
+        private long bootMillis;
+        private long busyMillis;
+        private long lifetimeMillis;
+        private final long[] bootCounts = new long[LatencyHistogram.LAUNCH_BOUNDS.length + 1];
+        private final long[] utilizationCounts = new long[UTILIZATION_BOUNDS.length + 1];
+
+        private void add(Rollup rollup) {
+            creates += rollup.creates;
+            onlines += rollup.onlines;
+            firstBuilds += rollup.firstBuilds;
+            terminates += rollup.terminates;
+            destroys += rollup.destroys;
+            bootMillis += rollup.bootMillis;
+            busyMillis += rollup.busyMillis;
+            lifetimeMillis += rollup.lifetimeMillis;
+            for (int i = 0; i < bootCounts.length; i++) {
+                bootCounts[i] += rollup.bootCounts[i];
+            }
+            for (int i = 0; i < utilizationCounts.length; i++) {
+                utilizationCounts[i] += rollup.utilizationCounts[i];
+            }
+        }
+
+        public int getCreates() {
+            return creates;
+        }
+
+        /**
+         * @return the number of new servers which got online
+         */
+        public int getOnlines() {
+            return onlines;
+        }
+
+        public int getFirstBuilds() {
+            return firstBuilds;
+        }
+
+        public int getTerminates() {
+            return terminates;
+        }
+
+        public int getDestroys() {
+            return destroys;
+        }
+
+        /**
+         * @return the total time servers were running builds
+         */
+        public long getBusyMillis() {
+            return busyMillis;
+        }
+
+        public long getAverageBootMillis() {
+            return onlines == 0 ? 0 : bootMillis / onlines;
+        }
+
+        public long getAverageLifetimeMillis() {
+            return destroys == 0 ? 0 : lifetimeMillis / destroys;
+        }
+
+        /**
+         * @param percentile e.g. 0.9 for the 90th percentile
+         * @return the upper bound of the boot time bucket the percentile falls into, in milliseconds, or -1 if there
+         * are no boot times, or {@link Long#MAX_VALUE} if it is above the highest bucket
+         */
+        public long getBootMillisPercentile(double percentile) {
+            return percentile(bootCounts, LatencyHistogram.LAUNCH_BOUNDS, percentile);
+        }
+
+        /**
+         * @param percentile e.g. 0.5 for the median
+         * @return the upper bound of the utilization bucket of destroyed servers the percentile falls into, in
+         * percent, or -1 if no server was destroyed
+         */
+        public long getUtilizationPercentile(double percentile) {
+            return percentile(utilizationCounts, UTILIZATION_BOUNDS, percentile);
+        }
+
+        private static long percentile(long[] counts, long[] bounds, double percentile) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return -1;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank) {
+                    return bounds[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public static final class ReportEntry {
+        private final String cloudName;
+        private final String templateName;
+        private final Summary summary;
+
+        private ReportEntry(String cloudName, String templateName, Summary summary) {
+            this.cloudName = cloudName;
+            this.templateName = templateName;
+            this.summary = summary;
+        }
+
+        public String getCloudName() {
+            return cloudName;
+        }
+
+        public String getTemplateName() {
+            return templateName;
+        }
+
+        public Summary getSummary() {
+            return summary;
+        }
+
+        public String getBootSecondsMedian() {
+            return seconds(summary.getBootMillisPercentile(0.5));
+        }
+
+        public String getBootSeconds90() {
+            return seconds(summary.getBootMillisPercentile(0.9));
+        }
+
+        public String getUtilizationMedian() {
+            long percent = summary.getUtilizationPercentile(0.5);
+            return percent < 0 ? "-" : "\u2264 " + percent + " %";
+        }
+
+        private static String seconds(long millis) {
+            if (millis < 0) {
+                return "-";
+            }
+            return millis == Long.MAX_VALUE ? "> " + LatencyHistogram.LAUNCH_BOUNDS[LatencyHistogram.LAUNCH_BOUNDS.length - 1] / 1000
+                    : "\u2264 " + millis / 1000;
+        }
+    }
+
+    @Extension
+    public static class Saver extends AsyncPeriodicWork {
+
+        public Saver() {
+            super("1&1 provisioning history saver");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        private long lastPruned;
+
+        @Override
+        protected void execute(TaskListener listener) {
+            long now = System.currentTimeMillis();
+            if (now - lastPruned < HOUR_MILLIS) {
+                get().saveAndRotate(null);
+                return;
+            }
+            lastPruned = now;
+
+            // listed before locking the history, usually served from the cache
+            Map<String, ServerInventory> inventories = new HashMap<String, ServerInventory>();
+            for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+                if (c instanceof Cloud) {
+                    try {
+                        inventories.put(c.name, ServerInventory.get(((Cloud) c).getApiToken()));
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "Failed to list the servers of cloud " + c.name, e);
+                        // its servers are kept until the next listing
+                        inventories.put(c.name, null);
+                    }
+                }
+            }
+            get().saveAndRotate(inventories);
+        }
+    }
+
+    /**
+     * Tracks when the servers run builds, for their first build and utilization.
+     */
+    @Extension
+    public static class BuildListener extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            Slave slave = getSlave(run);
+            if (slave != null) {
+                get().onBuildStarted(slave);
+            }
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            Slave slave = getSlave(run);
+            if (slave != null) {
+                get().onBuildCompleted(slave);
+            }
+        }
+
+        private static Slave getSlave(Run<?, ?> run) {
+            Executor executor = run.getExecutor();
+            hudson.model.Computer computer = executor == null ? null : executor.getOwner();
+            return computer instanceof Computer ? ((Computer) computer).getNode() : null;
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package org.jenkinsci.plugins.oneandonecloudserver;
 
 import hudson.model.Descriptor;
+import hudson.model.Node;
 import hudson.slaves.CloudSlaveRetentionStrategy;
-import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
 
 public class RetentionStrategy extends CloudSlaveRetentionStrategy<Computer> {
 
@@ -17,6 +21,75 @@ public class RetentionStrategy extends CloudSlaveRetentionStrategy<Computer> {
         computer.connect(false);
     }
 
+    /**
+     * How long before the next billing boundary a server may be terminated. Must cover the few minutes Jenkins might
+     * skip between checks.
+     */
+    private static final long BILLING_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(RetentionStrategy.class.getName() + ".billingMarginMinutes", 5));
+
+    /**
+     * Servers are terminated once they were idle for the idle termination time of their node. They are kept as long
+     * as their template doesn't have more idle servers than its minimum idle count, and, if the template has a
+     * billing period, until right before the next period of the server starts.
+     */
+    @Override
+    protected boolean isIdleForTooLong(Computer c) {
+        Slave node = c.getNode();
+        if (node == null || node.getIdleTerminationTime() == 0) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - c.getIdleStartMilliseconds() <= TimeUnit.MINUTES.toMillis(node.getIdleTerminationTime())) {
+            return false;
+        }
+
+        SlaveTemplate template = node.getTemplate();
+        if (template == null) {
+            return true;
+        }
+
+        if (template.countIdleServersLocal(node.getCloud().getName()) <= template.getMinimumIdle(Calendar.getInstance())) {
+            return false;
+        }
+
+        // the current period is paid for anyway, so the server stays available for builds until its end
+        return isNearBillingBoundary(node.getStartTimeMillis(), now, template.getBillingPeriodMinutes());
+    }
+
+    /**
+     * @return whether a server started at the given time is within the margin before the end of its current billing
+     * period, or {@code true} if there is no billing period
+     */
+    static boolean isNearBillingBoundary(long startTimeMillis, long now, int billingPeriodMinutes) {
+        if (billingPeriodMinutes <= 0) {
+            return true;
+        }
+
+        long period = TimeUnit.MINUTES.toMillis(billingPeriodMinutes);
+        long remaining = period - Math.max(0, now - startTimeMillis) % period;
+        return remaining <= Math.min(BILLING_MARGIN_MILLIS, period / 2);
+    }
+
+    /**
+     * Terminates the node instead of just removing it, so that its server can be parked, see {@link ParkedServers}.
+     */
+    @Override
+    protected void kill(Node n) throws IOException {
+        if (!(n instanceof Slave)) {
+            super.kill(n);
+            return;
+        }
+
+        try {
+            ((Slave) n).terminate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
     @Override
     protected long checkCycle() {
         return 1; // ask Jenkins to check every 1 minute, though it might decide to check in 2 or 3 (or longer?)
@@ -0,0 +1,201 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.oneandone.rest.POJO.Response.Types;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Destroys servers in the background.
+ *
+ * Sometimes servers have pending events during which you can't destroy them, one of such events is starting up a new
+ * server. Servers to destroy are therefore kept in a delay queue, and each server which couldn't be destroyed is
+ * retried on its own with an exponential backoff. A bounded number of workers destroys servers in parallel, while
+ * enqueueing a server never waits for any network call.
+ */
+public final class ServerDestroyer {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerDestroyer.class.getName());
+
+    /**
+     * The number of servers being destroyed at the same time.
+     */
+    private static final int WORKERS = Integer.getInteger(ServerDestroyer.class.getName() + ".workers", 4);
+
+    private static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final DelayQueue<Task> QUEUE = new DelayQueue<Task>();
+
+    /**
+     * Servers which are queued or being destroyed, to not destroy a server twice at the same time.
+     */
+    private static final ConcurrentMap<String, Task> PENDING = new ConcurrentHashMap<String, Task>();
+
+    // guarded by ServerDestroyer.class
+    private static boolean started;
+
+    private ServerDestroyer() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Queues the given server for destruction, unless it is queued already.
+     */
+    public static void enqueue(String apiToken, String serverId) {
+        Task task = new Task(apiToken, serverId);
+        if (PENDING.putIfAbsent(task.key, task) != null) {
+            LOGGER.log(Level.FINE, "Server {0} is already queued for destruction", serverId);
+            return;
+        }
+
+        LOGGER.info(String.format("Adding server to destroy %s", serverId));
+        QUEUE.add(task);
+        startIfNeeded();
+    }
+
+    /**
+     * @return whether the given server is queued or being destroyed
+     */
+    public static boolean isPending(String apiToken, String serverId) {
+        return PENDING.containsKey(key(apiToken, serverId));
+    }
+
+    /**
+     * @return the number of servers queued or being destroyed
+     */
+    public static int getQueueDepth() {
+        return PENDING.size();
+    }
+
+    /**
+     * @return how long the server which was queued first has been waiting to be destroyed, or 0 if there is none
+     */
+    public static long getOldestAgeMillis() {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        for (Task task : PENDING.values()) {
+            oldest = Math.min(oldest, task.enqueuedAt);
+        }
+        return now - oldest;
+    }
+
+    private static synchronized void startIfNeeded() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        for (int i = 0; i < WORKERS; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            destroy(QUEUE.take());
+                        } catch (InterruptedException e) {
+                            // ignore
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Unexpected error while destroying servers", e);
+                        }
+                    }
+                }
+            }, "1&1 server destroyer #" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private static void destroy(Task task) {
+        try {
+            LOGGER.info("Trying to destroy server " + task.serverId);
+            OneAndOne.deleteServer(task.apiToken, task.serverId);
+            LOGGER.info("Server " + task.serverId + " is destroyed.");
+            ServerInventory.invalidate(task.apiToken);
+            ProvisioningHistory.onDestroyed(task.serverId);
+            PENDING.remove(task.key, task);
+            return;
+        } catch (Exception e) {
+            LOGGER.warning("Failed to destroy server " + task.serverId);
+            LOGGER.log(Level.WARNING, e.getMessage(), e);
+        }
+
+        // check if such server even existed in the first place
+        ServerResponse existingServer;
+        try {
+            existingServer = OneAndOne.getServer(task.apiToken, task.serverId);
+        } catch (Exception e) {
+            if (!ApiGate.isNotFound(e)) {
+                // e.g. throttled or a network error, the server might still exist and cost money
+                long backoff = task.retry();
+                LOGGER.log(Level.WARNING, String.format("Failed to retrieve server %s, retrying to destroy it in about %d seconds",
+                        task.serverId, backoff / 1000), e);
+                QUEUE.add(task);
+                return;
+            }
+            existingServer = null;
+        }
+
+        if (existingServer == null) {
+            LOGGER.info(String.format("Server %s doesn't exist, removing it from the queue.", task.serverId));
+            ProvisioningHistory.onDestroyed(task.serverId);
+            PENDING.remove(task.key, task);
+            return;
+        }
+        if (existingServer.getStatus().getState().equals(Types.ServerState.REMOVING)) {
+            LOGGER.info(String.format("Server %s is being removed already.", task.serverId));
+            ServerInventory.invalidate(task.apiToken);
+            ProvisioningHistory.onDestroyed(task.serverId);
+            PENDING.remove(task.key, task);
+            return;
+        }
+
+        // The requested server exists, so let's retry later
+        long backoff = task.retry();
+        LOGGER.info(String.format("Retrying to destroy server %s in about %d seconds", task.serverId, backoff / 1000));
+        QUEUE.add(task);
+    }
+
+    private static String key(String apiToken, String serverId) {
+        return apiToken + ":" + serverId;
+    }
+
+    private static final class Task implements Delayed {
+        private final String apiToken;
+        private final String serverId;
+        private final String key;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private volatile long dueAt = enqueuedAt;
+        private int attempts;
+
+        Task(String apiToken, String serverId) {
+            this.apiToken = apiToken;
+            this.serverId = serverId;
+            this.key = key(apiToken, serverId);
+        }
+
+        long retry() {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(attempts, 10));
+            attempts++;
+            dueAt = System.currentTimeMillis() + backoff;
+            return backoff;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long d = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+}
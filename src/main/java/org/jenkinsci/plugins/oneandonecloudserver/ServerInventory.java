@@ -0,0 +1,198 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.oneandone.rest.POJO.Response.Types;
+import com.oneandone.rest.client.RestClientException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot of all servers of a 1&amp;1 account, shared by every {@link Cloud} using the same API token.
+ *
+ * A snapshot is reused for at most {@link #TTL_MILLIS} and is dropped earlier whenever the plugin creates or
+ * destroys a server, so a whole provisioning burst costs a single listing call. Live server counts per cloud and
+ * per slave template are computed once when the snapshot is taken, which makes the instance cap checks constant time.
+ */
+public final class ServerInventory {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerInventory.class.getName());
+
+    /**
+     * How long a snapshot may be reused before the servers are listed again.
+     */
+    static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ServerInventory.class.getName() + ".ttlSeconds", 15));
+
+    private static final ConcurrentMap<String, Holder> HOLDERS = new ConcurrentHashMap<String, Holder>();
+
+    private final List<ServerResponse> servers;
+    private final Map<String, ServerResponse> serversById = new HashMap<String, ServerResponse>();
+    private final Set<String> countedNames = new HashSet<String>();
+    private final Map<String, Integer> cloudCounts = new HashMap<String, Integer>();
+    private final Map<String, Integer> slaveCounts = new HashMap<String, Integer>();
+    private final long timestamp;
+
+    ServerInventory(List<ServerResponse> servers) {
+        this.servers = Collections.unmodifiableList(servers);
+        this.timestamp = System.currentTimeMillis();
+
+        for (ServerResponse server : servers) {
+            serversById.put(server.getId(), server);
+
+            if (server.getStatus().getState().equals(Types.ServerState.REMOVING)) {
+                continue;
+            }
+
+            String cloudName = ServerName.getCloudName(server.getName());
+            if (cloudName == null) {
+                continue;
+            }
+
+            countedNames.add(server.getName());
+            increment(cloudCounts, cloudName);
+            increment(slaveCounts, slaveKey(cloudName, ServerName.getSlaveName(server.getName())));
+        }
+    }
+
+    /**
+     * Returns the current snapshot for the given API token, listing the servers only if there is no fresh one.
+     * Concurrent callers for the same token share a single listing call.
+     */
+    public static ServerInventory get(String apiToken) throws RestClientException, IOException {
+        return holderFor(apiToken).get(TTL_MILLIS);
+    }
+
+    /**
+     * Like {@link #get(String)}, but only reuses a snapshot which is younger than the given age.
+     */
+    public static ServerInventory get(String apiToken, long maxAgeMillis) throws RestClientException, IOException {
+        return holderFor(apiToken).get(Math.min(maxAgeMillis, TTL_MILLIS));
+    }
+
+    /**
+     * Drops the current snapshot for the given API token, so that the next {@link #get(String)} lists the servers again.
+     * Called whenever a server is created or destroyed by this plugin.
+     */
+    public static void invalidate(String apiToken) {
+        Holder holder = HOLDERS.get(apiToken);
+        if (holder != null) {
+            holder.invalidate();
+        }
+    }
+
+    private static Holder holderFor(String apiToken) {
+        Holder holder = HOLDERS.get(apiToken);
+        if (holder == null) {
+            Holder newHolder = new Holder(apiToken);
+            holder = HOLDERS.putIfAbsent(apiToken, newHolder);
+            if (holder == null) {
+                holder = newHolder;
+            }
+        }
+        return holder;
+    }
+
+    public List<ServerResponse> getServers() {
+        return servers;
+    }
+
+    /**
+     * @return the server with the given ID, or {@code null} if it wasn't part of the listing
+     */
+    public ServerResponse getServer(String serverId) {
+        return serversById.get(serverId);
+    }
+
+    /**
+     * @return the number of servers belonging to the given cloud which are not being removed
+     */
+    public int countCloudServers(String cloudName) {
+        Integer count = cloudCounts.get(cloudName);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the number of servers belonging to the given slave template which are not being removed
+     */
+    public int countSlaveServers(String cloudName, String slaveName) {
+        Integer count = slaveCounts.get(slaveKey(cloudName, slaveName));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return whether the server with the given name is part of the counts of its cloud and slave template
+     */
+    public boolean isCounted(String serverName) {
+        return countedNames.contains(serverName);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    private boolean isOlderThan(long maxAgeMillis) {
+        return System.currentTimeMillis() - timestamp >= maxAgeMillis;
+    }
+
+    // cloud and slave names can't contain '-', so the key is unambiguous
+    private static String slaveKey(String cloudName, String slaveName) {
+        return cloudName + "-" + slaveName;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static final class Holder {
+        private final String apiToken;
+        private final AtomicLong generation = new AtomicLong();
+        private volatile ServerInventory snapshot;
+
+        Holder(String apiToken) {
+            this.apiToken = apiToken;
+        }
+
+        ServerInventory get(long maxAgeMillis) throws RestClientException, IOException {
+            ServerInventory current = snapshot;
+            if (current != null && !current.isOlderThan(maxAgeMillis)) {
+                return current;
+            }
+
+            synchronized (this) {
+                // another thread might have refreshed the snapshot while we were waiting
+                current = snapshot;
+                if (current != null && !current.isOlderThan(maxAgeMillis)) {
+                    return current;
+                }
+
+                long listedGeneration = generation.get();
+                ServerInventory fresh = new ServerInventory(OneAndOne.getServers(apiToken));
+                LOGGER.log(Level.FINE, "Refreshed server inventory with {0} servers", fresh.servers.size());
+
+                // a server was created or destroyed while listing, so the listing might already be outdated
+                if (generation.get() == listedGeneration) {
+                    snapshot = fresh;
+                }
+                return fresh;
+            }
+        }
+
+        void invalidate() {
+            generation.incrementAndGet();
+            snapshot = null;
+        }
+    }
+}
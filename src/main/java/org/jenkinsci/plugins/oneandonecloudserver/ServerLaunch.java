@@ -0,0 +1,620 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.SettableFuture;
+import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.trilead.ssh2.Connection;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Launches a server as a state machine driven by a small scheduled executor per {@link Cloud}.
+ *
+ * Each phase is a short task which schedules the next one: the server is created, then the launch waits for the
+ * {@link ServerStatusPoller} to report it powered on, for the {@link SshProbe} to see its SSH daemon, and finally
+ * runs the init script and installs Java over SSH. No thread is held while waiting for the server to boot, so
+ * hundreds of concurrent launches only cost a handful of threads, and none of them from the shared remoting pool.
+ *
+ * The blocking steps run on pools of their own, so that they can't starve the boot checks: the create and power on
+ * calls on up to {@link Cloud#getParallelCreations()} threads, and the SSH steps on up to {@link #SSH_THREADS}
+ * threads per cloud. The launch deadline also applies while the init script runs and Java is installed, a watchdog
+ * closes the SSH connection once it has passed.
+ *
+ * A new server is added to Jenkins once it is prepared. Jenkins then calls {@link ComputerLauncher#launch}, which
+ * {@link #claim claims} the prepared launch and only has to start the agent.
+ */
+final class ServerLaunch {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerLaunch.class.getName());
+
+    enum Phase {
+        CREATING, BOOTING, SSH_READY, INIT, JAVA, AGENT, ONLINE, FAILED
+    }
+
+    /**
+     * The number of threads per cloud scheduling the phases and checking whether servers booted.
+     */
+    private static final int THREADS = Integer.getInteger(ServerLaunch.class.getName() + ".threads", 4);
+
+    /**
+     * The number of threads per cloud connecting to servers, running their init scripts and installing Java.
+     */
+    private static final int SSH_THREADS = Integer.getInteger(ServerLaunch.class.getName() + ".sshThreads", 10);
+
+    private static final long CREATION_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long BOOT_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final ConcurrentMap<String, ScheduledExecutorService> EXECUTORS = new ConcurrentHashMap<String, ScheduledExecutorService>();
+    private static final ConcurrentMap<String, ThreadPoolExecutor> CREATORS = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+    private static final ConcurrentMap<String, ThreadPoolExecutor> PREPARERS = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+
+    /**
+     * Prepared launches by node name, waiting for Jenkins to start the agent.
+     */
+    private static final ConcurrentMap<String, ServerLaunch> PREPARED = new ConcurrentHashMap<String, ServerLaunch>();
+
+    /**
+     * Names of the servers being launched which are not yet backed by a Jenkins node.
+     */
+    private static final Set<String> UNREGISTERED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Cloud cloud;
+    private final SlaveTemplate template;
+    private final String serverName;
+    private final CapacityLedger.Reservation reservation;
+    private final ScheduledExecutorService executor;
+    private final ExecutorService creator;
+    private final ExecutorService preparer;
+    private final CloudMetrics metrics;
+    private final LaunchTimeline timeline;
+    private final long startTime = System.currentTimeMillis();
+    private final long deadline;
+
+    private final SettableFuture<Node> node = SettableFuture.create();
+    private final SettableFuture<Connection> prepared = SettableFuture.create();
+    private final ByteArrayOutputStream transcript = new ByteArrayOutputStream();
+    private final PrintStream logger = new PrintStream(transcript, true);
+
+    // moved on with compareAndSet, so that a failed launch stays failed and fails only once
+    private final AtomicReference<Phase> phase = new AtomicReference<Phase>();
+    private volatile long phaseStarted = startTime;
+    private volatile String parkedServerId;
+    // the appliance or baked image a new server is created from, by which its boot time is recorded
+    private volatile String applianceId;
+    private volatile Slave slave;
+    private volatile boolean added;
+    private volatile Connection connection;
+    private volatile String host;
+    private volatile ServerResponse lastSeen;
+    // set by whichever ends the preparation over SSH first, the preparation itself or the deadline watchdog
+    private final AtomicBoolean preparationEnded = new AtomicBoolean();
+
+    private ServerLaunch(Cloud cloud, SlaveTemplate template, String serverName, CapacityLedger.Reservation reservation,
+                         Slave slave) {
+        this.cloud = cloud;
+        this.template = template;
+        this.serverName = serverName;
+        this.reservation = reservation;
+        this.slave = slave;
+        this.added = slave != null;
+        this.executor = executorFor(cloud.getName());
+        this.creator = poolFor(CREATORS, "creator", cloud.getName(), cloud.getParallelCreations());
+        this.preparer = poolFor(PREPARERS, "preparer", cloud.getName(), SSH_THREADS);
+        this.metrics = CloudMetrics.forCloud(cloud.getName());
+        this.timeline = new LaunchTimeline(template);
+        this.deadline = startTime + TimeUnit.MINUTES.toMillis(cloud.getTimeoutMinutes());
+    }
+
+    /**
+     * Starts creating a new server for the given reservation.
+     * @return the future node, done once the agent is online
+     */
+    static Future<Node> create(Cloud cloud, CapacityLedger.Reservation reservation, String serverName) {
+        reservation.setServerName(serverName);
+        ServerLaunch launch = new ServerLaunch(cloud, reservation.getTemplate(), serverName, reservation, null);
+        launch.enter(Phase.CREATING);
+        UNREGISTERED.add(serverName);
+        launch.creator.execute(launch.createServer);
+        return launch.node;
+    }
+
+    /**
+     * Starts powering on a parked server for the given reservation, see {@link ParkedServers}.
+     * @return the future node, done once the agent is online
+     */
+    static Future<Node> resume(Cloud cloud, CapacityLedger.Reservation reservation, ParkedServers.Parked parked) {
+        ServerLaunch launch = new ServerLaunch(cloud, reservation.getTemplate(), parked.getServerName(), reservation, null);
+        launch.enter(Phase.CREATING);
+        launch.parkedServerId = parked.getServerId();
+        UNREGISTERED.add(parked.getServerName());
+        launch.creator.execute(launch.powerOn);
+        return launch.node;
+    }
+
+    /**
+     * Starts preparing an existing node again, e.g. after Jenkins was restarted or the agent disconnected.
+     */
+    static ServerLaunch relaunch(Slave slave) {
+        ServerLaunch launch = new ServerLaunch(slave.getCloud(), slave.getTemplate(), slave.getNodeName(), null, slave);
+        launch.logger.println("Waiting for server " + slave.getServerId() + " to be ready");
+        launch.awaitBoot();
+        return launch;
+    }
+
+    /**
+     * @return whether the given server is being launched, but wasn't added to Jenkins yet
+     */
+    static boolean isUnregistered(String serverName) {
+        return UNREGISTERED.contains(serverName);
+    }
+
+    /**
+     * @return the prepared launch of the given node, or {@code null} if it wasn't launched by a {@link ServerLaunch}
+     */
+    static ServerLaunch claim(String nodeName) {
+        return PREPARED.remove(nodeName);
+    }
+
+    private static ScheduledExecutorService executorFor(final String cloudName) {
+        ScheduledExecutorService executor = EXECUTORS.get(cloudName);
+        if (executor == null) {
+            ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(THREADS,
+                    threadFactory("1&1 launcher for cloud " + cloudName));
+            executor = EXECUTORS.putIfAbsent(cloudName, newExecutor);
+            if (executor == null) {
+                executor = newExecutor;
+            } else {
+                newExecutor.shutdown();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the pool of the given kind for the given cloud, resized to the given number of threads, as the cloud
+     * might have been reconfigured since the pool was created. Idle threads time out.
+     */
+    private static ExecutorService poolFor(ConcurrentMap<String, ThreadPoolExecutor> pools, String kind,
+                                           String cloudName, int threads) {
+        ThreadPoolExecutor pool = pools.get(cloudName);
+        if (pool == null) {
+            ThreadPoolExecutor newPool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory("1&1 " + kind + " for cloud " + cloudName));
+            newPool.allowCoreThreadTimeOut(true);
+            pool = pools.putIfAbsent(cloudName, newPool);
+            if (pool == null) {
+                return newPool;
+            }
+        }
+
+        synchronized (pool) {
+            // the core size must never exceed the maximum size, so the order depends on the direction
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else if (threads < pool.getMaximumPoolSize()) {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+        }
+        return pool;
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    Phase getPhase() {
+        return phase.get();
+    }
+
+    LaunchTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Waits until the server is prepared for the agent.
+     * @return the authenticated SSH connection
+     */
+    Connection awaitPrepared() throws IOException, InterruptedException {
+        try {
+            return prepared.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            // e.g. a step which got lost, the launcher must not wait for it forever
+            String message = String.format("Timed out after %d seconds waiting for the server to be prepared, in phase %s",
+                    (System.currentTimeMillis() - startTime) / 1000, phase.get());
+            fail(message, null);
+            throw new IOException(message, e);
+        }
+    }
+
+    /**
+     * @return the output of the phases so far, for the log of the computer
+     */
+    String getTranscript() {
+        return transcript.toString();
+    }
+
+    /**
+     * Called by {@link ComputerLauncher} once the agent is connected.
+     */
+    void online() {
+        if (!enter(Phase.ONLINE)) {
+            return;
+        }
+        metrics.recordLaunch(true);
+        ProvisioningHistory.onOnline(slave, System.currentTimeMillis() - startTime);
+        if (applianceId != null) {
+            BootTimeStats.record(applianceId, template, System.currentTimeMillis() - startTime);
+        }
+        node.set(slave);
+    }
+
+    private final Runnable createServer = new Runnable() {
+        @Override
+        public void run() {
+            if (!cloud.tryAcquireCreationPermit()) {
+                // too many servers of this cloud are being created right now, e.g. by a pool not yet resized
+                final Runnable retry = this;
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        creator.execute(retry);
+                    }
+                }, CREATION_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            try {
+                applianceId = BakedImages.getApplianceId(cloud.getName(), template, cloud.getApiToken());
+                BootTimeStats.recordAttempt(applianceId, template);
+                slave = template.provision(serverName, applianceId, cloud.getName(), cloud.getApiToken(),
+                        cloud.getPrivateKey(), cloud.getSshKey());
+            } catch (Throwable t) {
+                // the template wraps any failure into an error
+                fail("Failed to create server " + serverName, t);
+                return;
+            } finally {
+                cloud.releaseCreationPermit();
+            }
+
+            logger.println("Created server " + slave.getServerId());
+            ProvisioningHistory.onCreated(cloud.getName(), template.getName(), slave.getServerId(), serverName);
+            awaitBoot();
+        }
+    };
+
+    private final Runnable powerOn = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                slave = template.resume(serverName, parkedServerId, cloud.getName(), cloud.getApiToken(),
+                        cloud.getPrivateKey());
+            } catch (Exception e) {
+                // the parked server might be gone or broken, so don't try it again
+                OneAndOne.tryDestroyServerAsync(cloud.getApiToken(), parkedServerId);
+                fail("Failed to power on parked server " + serverName, e);
+                return;
+            }
+
+            logger.println("Powering on parked server " + slave.getServerId());
+            awaitBoot();
+        }
+    };
+
+    private void awaitBoot() {
+        enter(Phase.BOOTING);
+        executor.execute(checkBoot);
+    }
+
+    private final Runnable checkBoot = new Runnable() {
+        @Override
+        public void run() {
+            if (phase.get() != Phase.BOOTING) {
+                return;
+            }
+            timeline.poll(1);
+
+            ServerStatusPoller poller = ServerStatusPoller.forToken(cloud.getApiToken());
+            ServerResponse server = poller.getLatest(slave.getServerId());
+
+            try {
+                if (server != null && server != lastSeen) {
+                    lastSeen = server;
+                    if (isStarting(server)) {
+                        logger.println("Waiting for server to enter POWERED_ON state, it is " + server.getStatus().getState());
+                    } else {
+                        String ip = ComputerLauncher.getIpAddress(server);
+                        if (!Strings.isNullOrEmpty(ip) && !"0.0.0.0".equals(ip)) {
+                            poller.forget(slave.getServerId());
+                            host = ip;
+                            awaitSsh();
+                            return;
+                        }
+                        logger.println("No ip address yet, your host is most likely waiting for an ip address.");
+                    }
+                }
+            } catch (IllegalStateException e) {
+                poller.forget(slave.getServerId());
+                fail(e.getMessage(), null);
+                return;
+            }
+
+            if (System.currentTimeMillis() >= deadline) {
+                poller.forget(slave.getServerId());
+                fail(String.format("Timed out after %d seconds of waiting for the server to boot",
+                        (System.currentTimeMillis() - startTime) / 1000), null);
+                return;
+            }
+
+            // continue after the next listing, or after a while should listing fail
+            Runnable next = once(this);
+            poller.onNextListing(slave.getServerId(), next);
+            executor.schedule(next, BOOT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    // the listing might not have seen a parked server being powered on yet
+    private boolean isStarting(ServerResponse server) {
+        if (parkedServerId != null) {
+            switch (server.getStatus().getState()) {
+                case POWERED_OFF:
+                case POWERING_OFF:
+                    return true;
+            }
+        }
+        return ComputerLauncher.isServerStarting(server);
+    }
+
+    private void awaitSsh() {
+        enter(Phase.SSH_READY);
+        final int port = slave.getSshPort();
+        logger.println("Waiting for SSH to come up on " + host + ":" + port + ".");
+
+        try {
+            SshProbe.probe(host, port, Math.max(0, deadline - System.currentTimeMillis()), new SshProbe.Listener() {
+                @Override
+                public void onResult(boolean ready, int attempts) {
+                    timeline.poll(attempts);
+                    if (ready) {
+                        preparer.execute(connect);
+                    } else {
+                        fail(String.format("Timed out after %d seconds of waiting for ssh to become available",
+                                (System.currentTimeMillis() - startTime) / 1000), null);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            fail("Failed to probe SSH on " + host, e);
+        }
+    }
+
+    private final Runnable connect = new Runnable() {
+        @Override
+        public void run() {
+            if (phase.get() != Phase.SSH_READY) {
+                return;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                // waited too long for a free preparer
+                timeOut();
+                return;
+            }
+            ScheduledFuture<?> watchdog = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (preparationEnded.compareAndSet(false, true)) {
+                        timeOut();
+                    }
+                }
+            }, remaining, TimeUnit.MILLISECONDS);
+
+            try {
+                prepare();
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+    };
+
+    private void timeOut() {
+        fail(String.format("Timed out after %d seconds of preparing the server in phase %s",
+                (System.currentTimeMillis() - startTime) / 1000, phase.get()), null);
+    }
+
+    // runs on a preparer thread, the watchdog closes the connection once the deadline has passed
+    private void prepare() {
+        Connection conn;
+        try {
+            conn = ComputerLauncher.getServerConnection(host, slave.getSshPort(), logger);
+            if (conn == null) {
+                // the daemon answered but the handshake failed, it might still be starting up
+                if (!preparationEnded.get()) {
+                    awaitSsh();
+                }
+                return;
+            }
+            connection = conn;
+            if (phase.get() == Phase.FAILED) {
+                // timed out while connecting, before the watchdog could see the connection
+                conn.close();
+                return;
+            }
+
+            logger.println("Authenticating as " + slave.getRemoteAdmin());
+            if (!conn.authenticateWithPublicKey(slave.getRemoteAdmin(), slave.getPrivateKey().toCharArray(), "")) {
+                fail("Authentication failed", null);
+                return;
+            }
+
+            enter(Phase.INIT);
+            if (!ComputerLauncher.runInitScript(slave, logger, conn, conn.createSCPClient())) {
+                fail("Init script failed", null);
+                return;
+            }
+
+            enter(Phase.JAVA);
+            if (!ComputerLauncher.installJava(logger, conn)) {
+                fail("Java could not be installed", null);
+                return;
+            }
+
+            if (reservation != null && parkedServerId == null
+                    && BakedImages.onBootstrapped(cloud.getName(), template, cloud.getApiToken(), slave.getServerId())) {
+                logger.println("Baking an image of this server for the next servers of " + template.getName());
+            }
+        } catch (Exception e) {
+            fail("Failed to prepare server " + serverName, e);
+            return;
+        }
+
+        if (!preparationEnded.compareAndSet(false, true)) {
+            // the watchdog failed the launch
+            return;
+        }
+        enter(Phase.AGENT);
+        if (added) {
+            // a relaunch, whose launcher is waiting already
+            prepared.set(connection);
+            return;
+        }
+
+        PREPARED.put(slave.getNodeName(), ServerLaunch.this);
+        prepared.set(connection);
+        try {
+            Jenkins.getInstance().addNode(slave);
+            added = true;
+            UNREGISTERED.remove(serverName);
+        } catch (IOException e) {
+            PREPARED.remove(slave.getNodeName());
+            fail("Failed to add node " + serverName, e);
+            return;
+        }
+        // from now on the node is counted by the instance cap checks itself
+        reservation.commit();
+        slave.toComputer().connect(false);
+    }
+
+    /**
+     * Aborts the launch and gets rid of the server.
+     */
+    void fail(String message, Throwable cause) {
+        // the deadline watchdog, the preparer and the launcher may fail the launch at the same time
+        Phase current;
+        do {
+            current = phase.get();
+            if (current == Phase.FAILED || current == Phase.ONLINE) {
+                return;
+            }
+        } while (!phase.compareAndSet(current, Phase.FAILED));
+        timeline.enter(Phase.FAILED, System.currentTimeMillis());
+        metrics.recordLaunch(false);
+        if (applianceId != null) {
+            // so that a template whose servers never come online isn't preferred as unmeasured
+            BootTimeStats.recordFailure(applianceId, template, TimeUnit.MINUTES.toMillis(cloud.getTimeoutMinutes()));
+        }
+        logger.println(message);
+
+        LOGGER.log(Level.WARNING, message + ", launch log:\n" + getTranscript(), cause);
+
+        if (connection != null) {
+            connection.close();
+        }
+
+        if (added) {
+            try {
+                // the server is destroyed once its computer is removed
+                Jenkins.getInstance().removeNode(slave);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove node " + serverName, e);
+            }
+        } else if (slave != null) {
+            OneAndOne.tryDestroyServerAsync(cloud.getApiToken(), slave.getServerId());
+        }
+        UNREGISTERED.remove(serverName);
+
+        if (reservation != null) {
+            reservation.release();
+        }
+
+        IOException failure = new IOException(message, cause);
+        prepared.setException(failure);
+        node.setException(failure);
+    }
+
+    /**
+     * Moves on to the given phase, recording how long the launch spent in the current one. Booting is timed from the
+     * creation request, and only for new servers.
+     * @return whether the launch moved on, which it doesn't once it failed
+     */
+    private boolean enter(Phase next) {
+        Phase current;
+        do {
+            current = phase.get();
+            if (current == next || current == Phase.FAILED) {
+                return false;
+            }
+        } while (!phase.compareAndSet(current, next));
+
+        long now = System.currentTimeMillis();
+        if (current == Phase.BOOTING) {
+            if (reservation != null && parkedServerId == null) {
+                metrics.recordPhase(current, now - startTime);
+            }
+        } else if (current != null) {
+            metrics.recordPhase(current, now - phaseStarted);
+        }
+        phaseStarted = now;
+        timeline.enter(next, now);
+        return true;
+    }
+
+    // runs the step once, no matter how many of its triggers fire
+    private Runnable once(final Runnable step) {
+        final AtomicBoolean triggered = new AtomicBoolean();
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (triggered.compareAndSet(false, true)) {
+                    executor.execute(step);
+                }
+            }
+        };
+    }
+}
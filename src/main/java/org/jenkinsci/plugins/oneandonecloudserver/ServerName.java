@@ -1,21 +1,33 @@
 package org.jenkinsci.plugins.oneandonecloudserver;
 
 import java.util.UUID;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
+/**
+ * Server names have the format {@code jenkins-<cloud>-<slave>-<uuid>}. As cloud and slave names can't contain
+ * {@code -}, they are parsed by a hand-written scanner instead of a regular expression, since the matchers are
+ * called in loops over all servers and nodes.
+ */
 public class ServerName {
     private static final String PREFIX = "jenkins";
     private static final String CLOUD_REGEX = "([a-zA-Z0-9\\.]+)";
     private static final String SLAVE_REGEX = "([a-zA-Z0-9\\.]+)";
-    private static final String UUID_REGEX = "\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}";
-
-    private static final String SERVER_REGEX = PREFIX + "-" + CLOUD_REGEX + "-" + SLAVE_REGEX + "-" + UUID_REGEX;
 
     private static final Pattern CLOUD_PATTERN = Pattern.compile("^" + CLOUD_REGEX + "$");
     private static final Pattern SLAVE_PATTERN = Pattern.compile("^" + SLAVE_REGEX + "$");
-    private static final Pattern SERVER_PATTERN = Pattern.compile("^" + SERVER_REGEX + "$");
 
+    private static final String SERVER_PREFIX = PREFIX + "-";
+    private static final int UUID_LENGTH = 36;
+    private static final int MIN_SERVER_NAME_LENGTH = SERVER_PREFIX.length() + 4 + UUID_LENGTH;
+
+    /**
+     * Parsed names, so that the cloud and slave names are only extracted once per server name.
+     */
+    private static final int MAX_CACHE_SIZE = 10000;
+    private static final ConcurrentMap<String, Parsed> CACHE = new ConcurrentHashMap<String, Parsed>();
+    private static final Parsed INVALID = new Parsed(null, null);
 
     private ServerName() {
         throw new AssertionError();
@@ -34,12 +46,139 @@ public class ServerName {
     }
 
     public static boolean isServerInstanceOfCloud(final String serverName, final String cloudName) {
-        Matcher m = SERVER_PATTERN.matcher(serverName);
-        return m.matches() && m.group(1).equals(cloudName);
+        long spans = parse(serverName);
+        if (spans < 0) {
+            return false;
+        }
+
+        int cloudStart = SERVER_PREFIX.length();
+        int cloudEnd = (int) (spans >>> 32);
+        return cloudEnd - cloudStart == cloudName.length()
+                && serverName.regionMatches(cloudStart, cloudName, 0, cloudName.length());
     }
 
     public static boolean isServerInstanceOfSlave(final String serverName, final String cloudName, final String slaveName) {
-        Matcher m = SERVER_PATTERN.matcher(serverName);
-        return m.matches() && m.group(1).equals(cloudName) && m.group(2).equals(slaveName);
+        long spans = parse(serverName);
+        if (spans < 0) {
+            return false;
+        }
+
+        int cloudStart = SERVER_PREFIX.length();
+        int cloudEnd = (int) (spans >>> 32);
+        int slaveStart = cloudEnd + 1;
+        int slaveEnd = (int) spans;
+        return cloudEnd - cloudStart == cloudName.length()
+                && slaveEnd - slaveStart == slaveName.length()
+                && serverName.regionMatches(cloudStart, cloudName, 0, cloudName.length())
+                && serverName.regionMatches(slaveStart, slaveName, 0, slaveName.length());
+    }
+
+    /**
+     * Extracts the cloud name from a server name generated by {@link #generateServerName(String, String)}.
+     * @return the cloud name, or {@code null} if the server was not created by this plugin
+     */
+    public static String getCloudName(final String serverName) {
+        return parseCached(serverName).cloudName;
+    }
+
+    /**
+     * Extracts the slave template name from a server name generated by {@link #generateServerName(String, String)}.
+     * @return the slave template name, or {@code null} if the server was not created by this plugin
+     */
+    public static String getSlaveName(final String serverName) {
+        return parseCached(serverName).slaveName;
+    }
+
+    private static Parsed parseCached(final String serverName) {
+        Parsed parsed = CACHE.get(serverName);
+        if (parsed == null) {
+            long spans = parse(serverName);
+            if (spans < 0) {
+                parsed = INVALID;
+            } else {
+                int cloudEnd = (int) (spans >>> 32);
+                parsed = new Parsed(serverName.substring(SERVER_PREFIX.length(), cloudEnd),
+                        serverName.substring(cloudEnd + 1, (int) spans));
+            }
+
+            if (CACHE.size() >= MAX_CACHE_SIZE) {
+                // servers come and go, so the cache would otherwise keep growing
+                CACHE.clear();
+            }
+            CACHE.put(serverName, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a server name without allocating any objects.
+     * @return the end of the cloud name in the upper and the end of the slave name in the lower 32 bits,
+     *         or -1 if the server name doesn't have the format {@code jenkins-<cloud>-<slave>-<uuid>}
+     */
+    static long parse(final String serverName) {
+        int length = serverName.length();
+        if (length < MIN_SERVER_NAME_LENGTH || !serverName.startsWith(SERVER_PREFIX)) {
+            return -1;
+        }
+
+        int cloudEnd = scanName(serverName, SERVER_PREFIX.length(), length);
+        if (cloudEnd < 0) {
+            return -1;
+        }
+
+        int slaveEnd = scanName(serverName, cloudEnd + 1, length);
+        if (slaveEnd < 0 || length - slaveEnd - 1 != UUID_LENGTH || !isUuid(serverName, slaveEnd + 1)) {
+            return -1;
+        }
+
+        return ((long) cloudEnd << 32) | slaveEnd;
+    }
+
+    /**
+     * @return the index of the {@code -} terminating the non-empty name starting at {@code start}, or -1
+     */
+    private static int scanName(final String s, final int start, final int length) {
+        for (int i = start; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '-') {
+                return i > start ? i : -1;
+            }
+            if (!isNameChar(c)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isUuid(final String s, final int start) {
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = s.charAt(start + i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!isHexDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.';
+    }
+
+    private static boolean isHexDigit(final char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static final class Parsed {
+        private final String cloudName;
+        private final String slaveName;
+
+        Parsed(String cloudName, String slaveName) {
+            this.cloudName = cloudName;
+            this.slaveName = slaveName;
+        }
     }
 }
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.ServerResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the state of all servers of an API token which are waited for by a launch.
+ *
+ * Instead of every launch fetching its own server, a single background thread per token lists all servers at once
+ * through the {@link ServerInventory} and hands the latest state of each pending server to its launch. The number
+ * of API calls therefore doesn't grow with the number of servers booting at the same time.
+ *
+ * The thread only runs while servers are waited for.
+ */
+public final class ServerStatusPoller {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerStatusPoller.class.getName());
+
+    /**
+     * How often the servers are listed while launches are waiting.
+     */
+    static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ServerStatusPoller.class.getName() + ".intervalSeconds", 5));
+
+    private static final ConcurrentMap<String, ServerStatusPoller> POLLERS = new ConcurrentHashMap<String, ServerStatusPoller>();
+
+    private final String apiToken;
+
+    // all guarded by this
+    private final Map<String, List<Runnable>> listeners = new HashMap<String, List<Runnable>>();
+    private final Map<String, ServerResponse> latest = new HashMap<String, ServerResponse>();
+    private Thread thread;
+
+    private ServerStatusPoller(String apiToken) {
+        this.apiToken = apiToken;
+    }
+
+    public static ServerStatusPoller forToken(String apiToken) {
+        ServerStatusPoller poller = POLLERS.get(apiToken);
+        if (poller == null) {
+            ServerStatusPoller newPoller = new ServerStatusPoller(apiToken);
+            poller = POLLERS.putIfAbsent(apiToken, newPoller);
+            if (poller == null) {
+                poller = newPoller;
+            }
+        }
+        return poller;
+    }
+
+    /**
+     * @return the server as of the latest listing, or {@code null} if it hasn't shown up in a listing yet
+     */
+    public synchronized ServerResponse getLatest(String serverId) {
+        return latest.get(serverId);
+    }
+
+    /**
+     * Calls the listener once, after the next listing which includes the given server. The listener is called by
+     * the polling thread, so it must only hand off work.
+     */
+    public synchronized void onNextListing(String serverId, Runnable listener) {
+        List<Runnable> serverListeners = listeners.get(serverId);
+        if (serverListeners == null) {
+            serverListeners = new ArrayList<Runnable>();
+            listeners.put(serverId, serverListeners);
+        }
+        serverListeners.add(listener);
+        startIfNeeded();
+    }
+
+    /**
+     * Stops watching the given server.
+     */
+    public synchronized void forget(String serverId) {
+        listeners.remove(serverId);
+        latest.remove(serverId);
+    }
+
+    private void startIfNeeded() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "1&1 server status poller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void poll() {
+        boolean idleRound = false;
+        while (true) {
+            synchronized (this) {
+                if (listeners.isEmpty()) {
+                    // launches stop listening briefly while they handle a listing, so give them one more round
+                    if (idleRound) {
+                        latest.clear();
+                        thread = null;
+                        return;
+                    }
+                    idleRound = true;
+                } else {
+                    idleRound = false;
+                }
+            }
+
+            if (!idleRound) {
+                try {
+                    publish(ServerInventory.get(apiToken, POLL_INTERVAL_MILLIS));
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to list the servers of pending launches", e);
+                }
+            }
+
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private synchronized void publish(ServerInventory inventory) {
+        Iterator<Map.Entry<String, List<Runnable>>> it = listeners.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<Runnable>> e = it.next();
+            ServerResponse server = inventory.getServer(e.getKey());
+            if (server == null) {
+                continue;
+            }
+
+            latest.put(e.getKey(), server);
+            it.remove();
+            for (Runnable listener : e.getValue()) {
+                try {
+                    listener.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "Failed to notify the launcher of server " + e.getKey(), ex);
+                }
+            }
+        }
+    }
+}
@@ -77,6 +77,19 @@ public class Slave extends AbstractCloudSlave {
         return (Cloud) Jenkins.getInstance().getCloud(cloudName);
     }
 
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    /**
+     * Retrieve the template this slave was created from
+     * @return the template, or {@code null} if it was removed from the cloud configuration
+     */
+    public SlaveTemplate getTemplate() {
+        Cloud cloud = getCloud();
+        return cloud == null ? null : cloud.getTemplate(ServerName.getSlaveName(getNodeName()));
+    }
+
     /**
      * Get the name of the remote admin user
      * @return the remote admin user, defaulting to "root"
@@ -88,11 +101,14 @@ public class Slave extends AbstractCloudSlave {
     }
 
     /**
-     * Performs the removal of the underlying resource from the cloud.
+     * Powers off the server if its template parks idle servers, see {@link ParkedServers}. Otherwise the server is
+     * destroyed once the node is removed, by {@link Computer#onRemoved()}, which is the only place destroying the
+     * servers of removed nodes.
      */
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-        OneAndOne.tryDestroyServerAsync(getCloud().getApiToken(), serverId);
+        ProvisioningHistory.onTerminated(this);
+        ParkedServers.tryPark(this);
     }
 
     public long getStartTimeMillis() {
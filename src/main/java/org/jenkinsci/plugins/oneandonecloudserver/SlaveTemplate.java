@@ -7,7 +7,7 @@ import com.oneandone.rest.POJO.Response.AvailableHardwareFlavour;
 import com.oneandone.rest.POJO.Response.ServerAppliancesResponse;
 import com.oneandone.rest.POJO.Response.ServerResponse;
 import com.oneandone.rest.POJO.Response.Types;
-import com.oneandone.sdk.OneAndOneApi;
+import com.oneandone.rest.client.RestClientException;
 import hudson.Extension;
 import hudson.RelativePath;
 import hudson.Util;
@@ -34,6 +34,8 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private static final Logger LOGGER = Logger.getLogger(SlaveTemplate.class.getName());
 
+    private static final int DEFAULT_MAX_PARKED_MINUTES = 60;
+
     private final String name;
     private final String fixedInstanceSizeId;
     private final String applianceId;
@@ -54,10 +56,40 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     private final String workspacePath;
     private final Integer sshPort;
 
+    /**
+     * Number of idle servers which are kept ready for new builds, unless overridden by {@link #minimumIdleSchedule}.
+     */
+    private final Integer minimumIdle;
+    private final String minimumIdleSchedule;
+
+    /**
+     * Price of a server per hour, in any currency, as long as it's the same for all templates.
+     */
+    private final Double hourlyCost;
+
+    /**
+     * Whether new servers are created from an image baked from the first bootstrapped server, see {@link BakedImages}.
+     */
+    private final Boolean bakeImage;
+
+    /**
+     * Number of idle servers which are powered off instead of destroyed, see {@link ParkedServers}.
+     */
+    private final Integer parkedLimit;
+    private final Integer maxParkedMinutes;
+
+    /**
+     * Length of the period 1&amp;1 bills a server for, idle servers are kept until right before their next period.
+     */
+    private final Integer billingPeriodMinutes;
+    private transient MinimumIdleSchedule parsedMinimumIdleSchedule;
+
     @DataBoundConstructor
     public SlaveTemplate(String name, String applianceId, String fixedInstanceSizeId, String username, String workspacePath,
                          Integer sshPort, String idleTerminationInMinutes, String numExecutors, String labelString,
-                         Boolean labellessJobsAllowed, String instanceCap, String initScript) {
+                         Boolean labellessJobsAllowed, String instanceCap, String initScript, String minimumIdle,
+                         String minimumIdleSchedule, String hourlyCost, Boolean bakeImage,
+                         String parkedLimit, String maxParkedMinutes, String billingPeriodMinutes) {
         this.name = name;
         this.applianceId = applianceId;
         this.fixedInstanceSizeId = fixedInstanceSizeId;
@@ -73,6 +105,13 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         this.instanceCap = Integer.parseInt(instanceCap);
 
         this.initScript = initScript;
+        this.minimumIdle = tryParseInteger(minimumIdle, 0);
+        this.minimumIdleSchedule = minimumIdleSchedule;
+        this.hourlyCost = tryParseDouble(hourlyCost, 0);
+        this.bakeImage = bakeImage;
+        this.parkedLimit = tryParseInteger(parkedLimit, 0);
+        this.maxParkedMinutes = tryParseInteger(maxParkedMinutes, DEFAULT_MAX_PARKED_MINUTES);
+        this.billingPeriodMinutes = tryParseInteger(billingPeriodMinutes, 0);
 
         readResolve();
     }
@@ -83,32 +122,42 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
         LOGGER.log(Level.INFO, "slave limit check");
 
-        int count = 0;
-        List<Node> nodes = Jenkins.getInstance().getNodes();
-        for (Node n : nodes) {
-            if (ServerName.isServerInstanceOfSlave(n.getDisplayName(), cloudName, name)) {
-                count++;
-            }
-        }
+        return countServersLocal(cloudName) >= instanceCap;
+    }
 
-        return count >= instanceCap;
+    /**
+     * @return the number of Jenkins nodes created from this template in the given cloud, plus its parked servers
+     */
+    public int countServersLocal(String cloudName) {
+        return NodeCountIndex.countSlaveNodes(cloudName, name) + ParkedServers.countTemplate(cloudName, name);
     }
 
-    public boolean isInstanceCapReachedRemote(List<ServerResponse> servers, String cloudName) {
+    public boolean isInstanceCapReachedRemote(ServerInventory inventory, String cloudName) {
         LOGGER.log(Level.INFO, "slave limit check");
-        int count = 0;
-        for (ServerResponse server : servers) {
-            if (!server.getStatus().getState().equals(Types.ServerState.REMOVING)) {
-                if (ServerName.isServerInstanceOfSlave(server.getName(), cloudName, name)) {
-                    count++;
-                }
-            }
-        }
 
-        return count >= instanceCap;
+        return inventory.countSlaveServers(cloudName, name) >= instanceCap;
+    }
+
+    /**
+     * @return the number of Jenkins nodes created from this template in the given cloud which don't run any build
+     */
+    public int countIdleServersLocal(String cloudName) {
+        return NodeCountIndex.countIdleSlaveNodes(cloudName, name);
+    }
+
+    /**
+     * @return the number of idle servers to keep ready at the given time
+     */
+    public int getMinimumIdle(Calendar time) {
+        return parsedMinimumIdleSchedule.getMinimumIdle(time, getMinimumIdle());
     }
 
-    public Slave provision(String serverName, String cloudName, String apiToken, String privateKey, String sshKey, List<ServerResponse> servers) {
+    /**
+     * Creates a new server of this template.
+     * @param applianceId the appliance or baked image to create it from, see {@link BakedImages#getApplianceId}
+     */
+    public Slave provision(String serverName, String applianceId, String cloudName, String apiToken, String privateKey,
+                           String sshKey) {
 
         LOGGER.log(Level.INFO, "Provisioning slave...");
 
@@ -116,10 +165,6 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             LOGGER.log(Level.INFO, "Starting to provision 1&1 server using image: " + applianceId +
                     ", fixedInstanceSizeId: " + fixedInstanceSizeId);
 
-            if (isInstanceCapReachedLocal(cloudName) || isInstanceCapReachedRemote(servers, cloudName)) {
-                throw new AssertionError();
-            }
-
             // create a new server
             CreateServerRequest server = new CreateServerRequest();
             server.setName(serverName);
@@ -133,11 +178,10 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
             LOGGER.log(Level.INFO, "Creating slave with new server " + serverName);
 
-            OneAndOneApi apiClient = new OneAndOneApi();
-            apiClient.setToken(apiToken);
-            ServerResponse createdServer = apiClient.getServerApi().createServer(server);
+            ServerResponse createdServer = OneAndOne.createServer(apiToken, server);
+            ServerInventory.invalidate(apiToken);
 
-            return newSlave(cloudName, createdServer, privateKey);
+            return newSlave(cloudName, createdServer.getName(), createdServer.getId(), privateKey);
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, e.getMessage(), e);
             throw new AssertionError();
@@ -145,19 +189,33 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     /**
-     * Create a new {@link Slave} from the given {@link ServerResponse}
-     * @param server the server being created
+     * Powers on a parked server of this template again, see {@link ParkedServers}.
+     * @return the slave for the server, which keeps the name it had before it was parked
+     */
+    public Slave resume(String serverName, String serverId, String cloudName, String apiToken, String privateKey)
+            throws RestClientException, IOException, Descriptor.FormException {
+        LOGGER.log(Level.INFO, "Powering on parked server " + serverName);
+
+        OneAndOne.updateServerStatus(apiToken, serverId, Types.ServerAction.POWER_ON);
+
+        return newSlave(cloudName, serverName, serverId, privateKey);
+    }
+
+    /**
+     * Create a new {@link Slave} for the given server
+     * @param serverName the name of the server
+     * @param serverId the ID of the server
      * @return the provisioned {@link Slave}
      * @throws IOException
      * @throws Descriptor.FormException
      */
-    private Slave newSlave(String cloudName, ServerResponse server, String privateKey) throws IOException, Descriptor.FormException {
+    private Slave newSlave(String cloudName, String serverName, String serverId, String privateKey) throws IOException, Descriptor.FormException {
         LOGGER.log(Level.INFO, "Creating new slave...");
         return new Slave(
                 cloudName,
-                server.getName(),
-                "Computer running on 1&1 with name: " + server.getName(),
-                server.getId(),
+                serverName,
+                "Computer running on 1&1 with name: " + serverName,
+                serverId,
                 privateKey,
                 username,
                 workspacePath,
@@ -272,6 +330,51 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             return doCheckNonNegativeNumber(instanceCap);
         }
 
+        public FormValidation doCheckMinimumIdle(@QueryParameter String minimumIdle) {
+            return doCheckNonNegativeNumber(minimumIdle);
+        }
+
+        public FormValidation doCheckParkedLimit(@QueryParameter String parkedLimit) {
+            return doCheckNonNegativeNumber(parkedLimit);
+        }
+
+        public FormValidation doCheckMaxParkedMinutes(@QueryParameter String maxParkedMinutes) {
+            return doCheckNonNegativeNumber(maxParkedMinutes);
+        }
+
+        public FormValidation doCheckBillingPeriodMinutes(@QueryParameter String billingPeriodMinutes) {
+            return doCheckNonNegativeNumber(billingPeriodMinutes);
+        }
+
+        public FormValidation doCheckHourlyCost(@QueryParameter String hourlyCost) {
+            if (Strings.isNullOrEmpty(hourlyCost)) {
+                return FormValidation.ok();
+            }
+
+            double number;
+
+            try {
+                number = Double.parseDouble(hourlyCost);
+            } catch (Exception e) {
+                return FormValidation.error("Must be a number");
+            }
+
+            if (number < 0) {
+                return FormValidation.error("Must be a nonnegative number");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMinimumIdleSchedule(@QueryParameter String minimumIdleSchedule) {
+            try {
+                MinimumIdleSchedule.parse(minimumIdleSchedule);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public FormValidation doCheckSizeId(@RelativePath("..") @QueryParameter String authToken) {
             return Cloud.DescriptorImpl.doCheckApiToken(authToken);
         }
@@ -377,6 +480,38 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return sshPort;
     }
 
+    public int getMinimumIdle() {
+        return minimumIdle == null ? 0 : minimumIdle;
+    }
+
+    public String getMinimumIdleSchedule() {
+        return minimumIdleSchedule;
+    }
+
+    public double getHourlyCost() {
+        return hourlyCost == null ? 0 : hourlyCost;
+    }
+
+    public boolean isBakeImage() {
+        return bakeImage != null && bakeImage;
+    }
+
+    public int getParkedLimit() {
+        return parkedLimit == null ? 0 : parkedLimit;
+    }
+
+    public int getMaxParkedMinutes() {
+        return maxParkedMinutes == null ? DEFAULT_MAX_PARKED_MINUTES : maxParkedMinutes;
+    }
+
+    public int getBillingPeriodMinutes() {
+        return billingPeriodMinutes == null ? 0 : billingPeriodMinutes;
+    }
+
+    public double getCostPerExecutor() {
+        return getHourlyCost() / numExecutors;
+    }
+
     private static int tryParseInteger(final String integerString, final int defaultValue) {
         try {
             return Integer.parseInt(integerString);
@@ -387,8 +522,27 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
     }
 
+    private static double tryParseDouble(final String doubleString, final double defaultValue) {
+        if (Strings.isNullOrEmpty(doubleString)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(doubleString);
+        }
+        catch (NumberFormatException e) {
+            LOGGER.log(Level.INFO, "Invalid number {0}, defaulting to {1}", new Object[] {doubleString, defaultValue});
+            return defaultValue;
+        }
+    }
+
     protected Object readResolve() {
         labelSet = Label.parse(labels);
+        try {
+            parsedMinimumIdleSchedule = MinimumIdleSchedule.parse(minimumIdleSchedule);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Ignoring invalid minimum idle schedule of " + name + ": " + e.getMessage());
+            parsedMinimumIdleSchedule = MinimumIdleSchedule.parse(null);
+        }
         return this;
     }
 }
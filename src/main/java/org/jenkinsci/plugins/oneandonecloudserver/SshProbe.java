@@ -0,0 +1,250 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks whether the SSH daemons of booting servers are ready, before a launcher starts the full SSH handshake.
+ *
+ * A single thread probes all pending hosts with non-blocking sockets. A host is ready once it answers with the
+ * {@code SSH-} banner. Failed attempts are retried with a short exponential backoff and jitter, so a server is
+ * noticed within a fraction of a second of its SSH daemon coming up, while launchers don't hold a thread in a
+ * blocking connect.
+ */
+final class SshProbe {
+
+    private static final Logger LOGGER = Logger.getLogger(SshProbe.class.getName());
+
+    private static final long MIN_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(8);
+    private static final long ATTEMPT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final byte[] BANNER = "SSH-".getBytes(Charset.forName("US-ASCII"));
+
+    private static final Queue<Probe> NEW_PROBES = new ConcurrentLinkedQueue<Probe>();
+
+    // guarded by SshProbe.class
+    private static Selector selector;
+
+    private SshProbe() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Called by the probing thread once a probe completes, so it must only hand off work.
+     */
+    interface Listener {
+        /**
+         * @param ready {@code true} if the banner was seen, {@code false} if the timeout elapsed first
+         * @param attempts the number of connections attempted, including the last one
+         */
+        void onResult(boolean ready, int attempts);
+    }
+
+    /**
+     * Probes the given host until it answers with an SSH banner or the timeout elapses.
+     */
+    static void probe(String host, int port, long timeoutMillis, Listener listener) throws IOException {
+        Probe probe = new Probe(new InetSocketAddress(host, port), System.currentTimeMillis() + timeoutMillis, listener);
+        NEW_PROBES.add(probe);
+        getSelector().wakeup();
+    }
+
+    private static synchronized Selector getSelector() throws IOException {
+        if (selector == null) {
+            final Selector newSelector = Selector.open();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    probe(newSelector);
+                }
+            }, "1&1 SSH readiness probe");
+            thread.setDaemon(true);
+            thread.start();
+            selector = newSelector;
+        }
+        return selector;
+    }
+
+    private static void probe(Selector selector) {
+        List<Probe> waiting = new ArrayList<Probe>();
+
+        while (true) {
+            try {
+                Probe newProbe;
+                while ((newProbe = NEW_PROBES.poll()) != null) {
+                    waiting.add(newProbe);
+                }
+
+                long now = System.currentTimeMillis();
+                long nextDue = Long.MAX_VALUE;
+
+                // attempts which are in progress
+                for (SelectionKey key : selector.keys()) {
+                    if (!key.isValid()) {
+                        continue; // closed, but not yet deregistered by select
+                    }
+                    Probe probe = (Probe) key.attachment();
+                    if (probe.isDone() || now >= probe.attemptDeadline) {
+                        retry(probe, waiting);
+                    } else {
+                        nextDue = Math.min(nextDue, probe.attemptDeadline);
+                    }
+                }
+
+                // probes waiting for their next attempt
+                List<Probe> due = new ArrayList<Probe>();
+                Iterator<Probe> it = waiting.iterator();
+                while (it.hasNext()) {
+                    Probe probe = it.next();
+                    if (probe.isDone() || now >= probe.deadline) {
+                        probe.complete(false);
+                        it.remove();
+                    } else if (now >= probe.nextAttempt) {
+                        it.remove();
+                        due.add(probe);
+                    } else {
+                        nextDue = Math.min(nextDue, Math.min(probe.nextAttempt, probe.deadline));
+                    }
+                }
+                // connected after the loop, as an attempt which fails right away is put back into waiting
+                for (Probe probe : due) {
+                    connect(selector, probe, now, waiting);
+                    if (!probe.isDone()) {
+                        nextDue = Math.min(nextDue, probe.channel != null ? probe.attemptDeadline : probe.nextAttempt);
+                    }
+                }
+
+                selector.select(nextDue == Long.MAX_VALUE ? 0 : Math.max(1, nextDue - System.currentTimeMillis()));
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    handle(key, waiting);
+                }
+            } catch (Throwable t) {
+                // never let the thread die, the launchers would wait for their timeout
+                LOGGER.log(Level.WARNING, "Unexpected error while probing for SSH", t);
+            }
+        }
+    }
+
+    private static void connect(Selector selector, Probe probe, long now, List<Probe> waiting) {
+        probe.attemptDeadline = now + ATTEMPT_TIMEOUT_MILLIS;
+        probe.buffer.clear();
+        try {
+            probe.channel = SocketChannel.open();
+            probe.channel.configureBlocking(false);
+            int ops = probe.channel.connect(probe.address) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+            probe.channel.register(selector, ops, probe);
+        } catch (IOException e) {
+            // e.g. refused or unreachable
+            retry(probe, waiting);
+        } catch (RuntimeException e) {
+            // e.g. an unresolved address, which doesn't get any better by retrying
+            LOGGER.log(Level.WARNING, "Failed to probe " + probe.address + " for SSH", e);
+            close(probe);
+            probe.complete(false);
+        }
+    }
+
+    private static void handle(SelectionKey key, List<Probe> waiting) {
+        Probe probe = (Probe) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                if (probe.channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                if (probe.channel.read(probe.buffer) < 0) {
+                    retry(probe, waiting);
+                } else if (!probe.buffer.hasRemaining()) {
+                    if (Arrays.equals(probe.buffer.array(), BANNER)) {
+                        close(probe);
+                        probe.complete(true);
+                    } else {
+                        retry(probe, waiting);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            retry(probe, waiting);
+        }
+    }
+
+    private static void retry(Probe probe, List<Probe> waiting) {
+        close(probe);
+
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(probe.attempts, 10));
+        probe.attempts++;
+        // jitter, so that servers booting together are not probed in lockstep
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        probe.nextAttempt = System.currentTimeMillis() + delay;
+        waiting.add(probe);
+    }
+
+    private static void close(Probe probe) {
+        if (probe.channel != null) {
+            try {
+                probe.channel.close(); // also cancels its selection key
+            } catch (IOException e) {
+                // ignore
+            }
+            probe.channel = null;
+        }
+    }
+
+    private static final class Probe {
+        private final InetSocketAddress address;
+        private final long deadline;
+        private final Listener listener;
+
+        // only accessed by the probing thread
+        private final ByteBuffer buffer = ByteBuffer.allocate(BANNER.length);
+        private SocketChannel channel;
+        private long nextAttempt;
+        private long attemptDeadline;
+        private int attempts;
+        private boolean done;
+
+        Probe(InetSocketAddress address, long deadline, Listener listener) {
+            this.address = address;
+            this.deadline = deadline;
+            this.listener = listener;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        void complete(boolean ready) {
+            if (!done) {
+                done = true;
+                try {
+                    listener.onResult(ready, attempts + 1);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to notify the launcher of " + address, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How a {@link Cloud} chooses among the templates matching a label. The boot time aware policies try each template
+ * whose boot time wasn't observed yet once, preferring it, so that every template gets measured. Until its first
+ * server came online or failed, it is scored with the mean boot time of the measured templates.
+ */
+public enum TemplateSelection {
+
+    FIRST("First matching template") {
+        @Override
+        double score(SlaveTemplate template, double bootTime, double maxBootTime, double maxCost) {
+            return 0;
+        }
+    },
+
+    FASTEST_BOOT("Fastest boot") {
+        @Override
+        double score(SlaveTemplate template, double bootTime, double maxBootTime, double maxCost) {
+            return bootTime;
+        }
+    },
+
+    CHEAPEST("Cheapest per executor") {
+        @Override
+        double score(SlaveTemplate template, double bootTime, double maxBootTime, double maxCost) {
+            return template.getCostPerExecutor();
+        }
+    },
+
+    WEIGHTED("Boot time and cost, weighted equally") {
+        @Override
+        double score(SlaveTemplate template, double bootTime, double maxBootTime, double maxCost) {
+            double normalizedBootTime = maxBootTime == 0 ? 0 : bootTime / maxBootTime;
+            double cost = maxCost == 0 ? 0 : template.getCostPerExecutor() / maxCost;
+            return normalizedBootTime + cost;
+        }
+    };
+
+    private final String displayName;
+
+    TemplateSelection(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Lower scores are preferred.
+     * @param bootTime the expected boot time of the template, see {@link #order}
+     */
+    abstract double score(SlaveTemplate template, double bootTime, double maxBootTime, double maxCost);
+
+    /**
+     * @return the given templates of the given cloud, ordered from the most to the least preferred one
+     */
+    public List<SlaveTemplate> order(String cloudName, List<SlaveTemplate> templates) {
+        if (this == FIRST || templates.size() < 2) {
+            return templates;
+        }
+
+        Map<SlaveTemplate, Long> averages = new HashMap<SlaveTemplate, Long>();
+        long measuredSum = 0;
+        int measured = 0;
+        double maxCost = 0;
+        for (SlaveTemplate t : templates) {
+            long average = BootTimeStats.getAverage(cloudName, t);
+            averages.put(t, average);
+            if (average >= 0) {
+                measuredSum += average;
+                measured++;
+            }
+            maxCost = Math.max(maxCost, t.getCostPerExecutor());
+        }
+        double prior = measured == 0 ? 0 : (double) measuredSum / measured;
+
+        Map<SlaveTemplate, Double> bootTimes = new HashMap<SlaveTemplate, Double>();
+        double maxBootTime = 0;
+        for (SlaveTemplate t : templates) {
+            long average = averages.get(t);
+            double bootTime;
+            if (average >= 0) {
+                bootTime = average;
+            } else if (BootTimeStats.isUntried(cloudName, t)) {
+                // tried once, before anything else
+                bootTime = 0;
+            } else {
+                // tried, but no server came online or failed yet
+                bootTime = prior;
+            }
+            bootTimes.put(t, bootTime);
+            maxBootTime = Math.max(maxBootTime, bootTime);
+        }
+
+        final Map<SlaveTemplate, Double> scores = new HashMap<SlaveTemplate, Double>();
+        for (SlaveTemplate t : templates) {
+            scores.put(t, score(t, bootTimes.get(t), maxBootTime, maxCost));
+        }
+
+        // the sort is stable, so ties keep the configured order
+        List<SlaveTemplate> ordered = new ArrayList<SlaveTemplate>(templates);
+        Collections.sort(ordered, new Comparator<SlaveTemplate>() {
+            @Override
+            public int compare(SlaveTemplate o1, SlaveTemplate o2) {
+                return Double.compare(scores.get(o1), scores.get(o2));
+            }
+        });
+        return ordered;
+    }
+
+    public static TemplateSelection fromString(String value) {
+        if (value == null || value.isEmpty()) {
+            return FIRST;
+        }
+        try {
+            return valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return FIRST;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.util.Calendar;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tops up the idle servers of every {@link SlaveTemplate} with a minimum idle count, so that builds for its labels
+ * don't have to wait for a new server to boot. Servers being created count as idle, and the instance caps still apply.
+ */
+@Extension
+public class WarmPoolMaintainer extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(WarmPoolMaintainer.class.getName());
+
+    public WarmPoolMaintainer() {
+        super("1&1 warm pool maintainer");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Calendar now = Calendar.getInstance();
+
+        for (hudson.slaves.Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof Cloud)) {
+                continue;
+            }
+
+            Cloud cloud = (Cloud) c;
+            for (SlaveTemplate t : cloud.getTemplates()) {
+                int minimumIdle = t.getMinimumIdle(now);
+                if (minimumIdle == 0) {
+                    continue;
+                }
+
+                int available = t.countIdleServersLocal(cloud.getName()) + cloud.getCapacityLedger().getReserved(t);
+                if (available < minimumIdle) {
+                    LOGGER.log(Level.INFO, "Provisioning {0} idle servers for {1} in cloud {2}",
+                            new Object[]{minimumIdle - available, t.getName(), cloud.getName()});
+                    cloud.provision(t, minimumIdle - available);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.client.RestClientException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Passes fake requests through gates of their own, as gates are kept by API token.
+ */
+public class ApiGateTest {
+
+    private long minBackoffMillis;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        minBackoffMillis = ApiGate.minBackoffMillis;
+        ApiGate.minBackoffMillis = 1;
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        ApiGate.minBackoffMillis = minBackoffMillis;
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void throttledRequestIsRetried() throws Exception {
+        ApiGate gate = ApiGate.forToken("retried");
+        final AtomicInteger calls = new AtomicInteger();
+
+        String result = gate.call("getServer", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (calls.incrementAndGet() <= 2) {
+                    throw new RestClientException("Too many requests", 429);
+                }
+                return "server";
+            }
+        });
+
+        assertEquals("server", result);
+        assertEquals(3, calls.get());
+        ApiGate.EndpointStats stats = gate.getEndpointStats().get("getServer");
+        assertEquals(3, stats.getCalls());
+        assertEquals(2, stats.getErrors());
+        assertEquals(2, stats.getThrottled());
+    }
+
+    @Test
+    public void throttledRequestIsRetriedOnlySoOften() throws Exception {
+        ApiGate gate = ApiGate.forToken("limited");
+        final AtomicInteger calls = new AtomicInteger();
+
+        try {
+            gate.call("getServer", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    calls.incrementAndGet();
+                    throw new RestClientException("Too many requests", 429);
+                }
+            });
+            fail("the last throttled answer is thrown");
+        } catch (RestClientException e) {
+            assertEquals(429, e.getStatusCode());
+        }
+        assertEquals(ApiGate.MAX_THROTTLED_RETRIES + 1, calls.get());
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws Exception {
+        ApiGate gate = ApiGate.forToken("failed");
+        final AtomicInteger calls = new AtomicInteger();
+
+        try {
+            gate.call("createServer", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    calls.incrementAndGet();
+                    throw new RestClientException("Internal server error", 500);
+                }
+            });
+            fail("the error is thrown");
+        } catch (RestClientException e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, gate.getEndpointStats().get("createServer").getThrottled());
+    }
+
+    @Test
+    public void throttlingBacksOffTheRetry() throws Exception {
+        ApiGate.minBackoffMillis = 300;
+        ApiGate gate = ApiGate.forToken("backoff");
+        final AtomicLong throttledAt = new AtomicLong();
+        final AtomicLong retriedAt = new AtomicLong();
+
+        gate.call("getServer", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (throttledAt.get() == 0) {
+                    throttledAt.set(System.nanoTime());
+                    throw new RestClientException("Too many requests", 429);
+                }
+                retriedAt.set(System.nanoTime());
+                return "server";
+            }
+        });
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(retriedAt.get() - throttledAt.get()) >= 300);
+    }
+
+    @Test
+    public void concurrentIdenticalRequestsAreCoalesced() throws Exception {
+        final ApiGate gate = ApiGate.forToken("coalesced");
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object server = new Object();
+
+        final Callable<Object> request = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return server;
+            }
+        };
+        Future<Object> first = executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return gate.call("getServer", "server-1", request);
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Caller second = new Caller(gate, "server-1", request);
+        second.start();
+        second.awaitWaiting();
+
+        // a different key is a request of its own
+        Object other = gate.call("getServer", "server-2", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return "other";
+            }
+        });
+        assertEquals("other", other);
+
+        release.countDown();
+        assertSame(server, first.get(10, TimeUnit.SECONDS));
+        second.join(TimeUnit.SECONDS.toMillis(10));
+        assertSame(server, second.result);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failureIsSharedWithCoalescedRequests() throws Exception {
+        final ApiGate gate = ApiGate.forToken("coalescedFailure");
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Callable<Object> request = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                throw new RestClientException("Not found", 404);
+            }
+        };
+        Future<Object> first = executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return gate.call("getServer", "server-1", request);
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Caller second = new Caller(gate, "server-1", request);
+        second.start();
+        second.awaitWaiting();
+
+        release.countDown();
+        second.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(ApiGate.isNotFound(second.failure));
+        try {
+            first.get(10, TimeUnit.SECONDS);
+            fail("the failure is thrown");
+        } catch (ExecutionException e) {
+            assertTrue(ApiGate.isNotFound(e.getCause()));
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void requestsWithoutKeyAreNotCoalesced() throws Exception {
+        final ApiGate gate = ApiGate.forToken("uncoalesced");
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Callable<Object> caller = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return gate.call("createServer", new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        calls.incrementAndGet();
+                        started.countDown();
+                        release.await();
+                        return "server";
+                    }
+                });
+            }
+        };
+        Future<Object> first = executor.submit(caller);
+        Future<Object> second = executor.submit(caller);
+
+        assertTrue("both requests run at the same time", started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertEquals("server", first.get(10, TimeUnit.SECONDS));
+        assertEquals("server", second.get(10, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Calls the gate from a thread of its own, so that the test can wait until it's blocked on a coalesced request.
+     */
+    private static final class Caller extends Thread {
+        private final ApiGate gate;
+        private final String key;
+        private final Callable<Object> request;
+        private volatile Object result;
+        private volatile Exception failure;
+
+        private Caller(ApiGate gate, String key, Callable<Object> request) {
+            this.gate = gate;
+            this.key = key;
+            this.request = request;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = gate.call("getServer", key, request);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        void awaitWaiting() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (getState() != State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(State.WAITING, getState());
+        }
+    }
+}
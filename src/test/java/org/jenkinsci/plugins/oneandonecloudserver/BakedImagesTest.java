@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bakes images against a fake {@link ImageEndpoint}. The registry of baked images is static, so every test uses
+ * templates of its own.
+ */
+public class BakedImagesTest {
+
+    private static final String CLOUD_NAME = "test";
+    private static final String API_TOKEN = "token";
+    private static final String APPLIANCE_ID = "appliance";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final FakeImageEndpoint images = new FakeImageEndpoint();
+    private long bakeTimeoutMillis;
+
+    @Before
+    public void setUp() {
+        BakedImages.setEndpoint(images);
+        bakeTimeoutMillis = BakedImages.bakeTimeoutMillis;
+    }
+
+    @After
+    public void tearDown() {
+        BakedImages.setEndpoint(null);
+        BakedImages.bakeTimeoutMillis = bakeTimeoutMillis;
+    }
+
+    @Test
+    public void bakesOnceAndUsesTheImageWhenReady() {
+        SlaveTemplate template = template("ready", "echo ready");
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+
+        assertTrue(BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-1"));
+        assertFalse("baking already", BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-2"));
+        assertEquals(1, images.created.size());
+
+        images.setState("image-1", "ACTIVE");
+        assertEquals("image-1", BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+        assertFalse("up to date", BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-3"));
+    }
+
+    @Test
+    public void pendingImageIsNotUsed() {
+        SlaveTemplate template = template("pending", "echo pending");
+        assertTrue(BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-1"));
+
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+        assertTrue(images.deleted.isEmpty());
+    }
+
+    @Test
+    public void recipeChangeBakesAgainAndDeletesTheOutdatedImage() {
+        SlaveTemplate template = template("recipe", "echo old");
+        assertTrue(BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-1"));
+        images.setState("image-1", "ACTIVE");
+        assertEquals("image-1", BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+
+        SlaveTemplate changed = template("recipe", "echo new");
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, changed, API_TOKEN));
+        assertTrue(BakedImages.onBootstrapped(CLOUD_NAME, changed, API_TOKEN, "server-2"));
+        assertTrue("kept until its replacement is ready", images.deleted.isEmpty());
+
+        images.setState("image-2", "ACTIVE");
+        assertEquals("image-2", BakedImages.getApplianceId(CLOUD_NAME, changed, API_TOKEN));
+        assertEquals(1, images.deleted.size());
+        assertEquals("image-1", images.deleted.get(0));
+    }
+
+    @Test
+    public void failedImageFallsBackToTheAppliance() {
+        SlaveTemplate template = template("failed", "echo failed");
+        assertTrue(BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-1"));
+        images.setState("image-1", "ERROR");
+
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+        assertFalse("retried an hour later", BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-2"));
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+    }
+
+    @Test
+    public void failedCreationFallsBackToTheAppliance() {
+        SlaveTemplate template = template("uncreated", "echo uncreated");
+        images.failCreation = true;
+
+        assertFalse(BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-1"));
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+    }
+
+    @Test
+    public void imageWhichTakesTooLongIsDeleted() {
+        BakedImages.bakeTimeoutMillis = 0;
+        SlaveTemplate template = template("timeout", "echo timeout");
+        assertTrue(BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-1"));
+
+        assertEquals(APPLIANCE_ID, BakedImages.getApplianceId(CLOUD_NAME, template, API_TOKEN));
+        assertEquals(1, images.deleted.size());
+        assertEquals("image-1", images.deleted.get(0));
+        assertFalse("retried an hour later", BakedImages.onBootstrapped(CLOUD_NAME, template, API_TOKEN, "server-2"));
+    }
+
+    private static SlaveTemplate template(String name, String initScript) {
+        return new SlaveTemplate(name, APPLIANCE_ID, "size", "root", "/jenkins", 22, "10", "1", name, false, "1",
+                initScript, null, null, null, true, null, null, null);
+    }
+
+    private static final class FakeImageEndpoint implements ImageEndpoint {
+        private final Map<String, String> states = new HashMap<String, String>();
+        private final List<String> created = new ArrayList<String>();
+        private final List<String> deleted = new ArrayList<String>();
+        private boolean failCreation;
+
+        @Override
+        public synchronized String createImage(String apiToken, String serverId, String name) throws IOException {
+            if (failCreation) {
+                throw new IOException("Quota exceeded");
+            }
+            String imageId = "image-" + (created.size() + 1);
+            created.add(imageId);
+            states.put(imageId, "CONFIGURING");
+            return imageId;
+        }
+
+        @Override
+        public synchronized String getImageState(String apiToken, String imageId) throws IOException {
+            String state = states.get(imageId);
+            if (state == null) {
+                throw new IOException("No image " + imageId);
+            }
+            return state;
+        }
+
+        @Override
+        public synchronized void deleteImage(String apiToken, String imageId) {
+            states.remove(imageId);
+            deleted.add(imageId);
+        }
+
+        private synchronized void setState(String imageId, String state) {
+            states.put(imageId, state);
+        }
+    }
+}
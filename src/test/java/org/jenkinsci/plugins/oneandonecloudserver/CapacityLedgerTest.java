@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import com.oneandone.rest.POJO.Response.ServerResponse;
+import com.oneandone.rest.POJO.Response.Status;
+import com.oneandone.rest.POJO.Response.Types;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reserves slots against an inventory built in memory. Ledgers, parked servers and the node index are static and
+ * kept by cloud name, so every test uses a cloud of its own.
+ */
+public class CapacityLedgerTest {
+
+    private static final ServerInventory EMPTY = new ServerInventory(Collections.<ServerResponse>emptyList());
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void cloudCapHoldsForConcurrentReservations() throws Exception {
+        final SlaveTemplate template = template("slave", 0);
+        final Cloud cloud = cloud("concurrent", 5, template);
+        final CapacityLedger ledger = CapacityLedger.forCloud(cloud.getName());
+
+        int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int count = 0;
+                        for (int k = 0; k < 10; k++) {
+                            if (ledger.tryReserve(cloud, template, EMPTY) != null) {
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+            start.countDown();
+
+            int reserved = 0;
+            for (Future<Integer> result : results) {
+                reserved += result.get();
+            }
+            assertEquals(5, reserved);
+            assertEquals(5, ledger.getReserved());
+            assertEquals(5, ledger.getReserved(template));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void templateCapLeavesRoomForOtherTemplates() {
+        SlaveTemplate capped = template("capped", 2);
+        SlaveTemplate other = template("other", 0);
+        Cloud cloud = cloud("templatecap", 10, capped, other);
+        CapacityLedger ledger = CapacityLedger.forCloud(cloud.getName());
+
+        assertNotNull(ledger.tryReserve(cloud, capped, EMPTY));
+        assertNotNull(ledger.tryReserve(cloud, capped, EMPTY));
+        assertNull(ledger.tryReserve(cloud, capped, EMPTY));
+        assertNotNull(ledger.tryReserve(cloud, other, EMPTY));
+    }
+
+    @Test
+    public void commitAndReleaseTakeEffectOnce() {
+        SlaveTemplate template = template("slave", 0);
+        Cloud cloud = cloud("idempotent", 2, template);
+        CapacityLedger ledger = CapacityLedger.forCloud(cloud.getName());
+
+        CapacityLedger.Reservation released = ledger.tryReserve(cloud, template, EMPTY);
+        CapacityLedger.Reservation committed = ledger.tryReserve(cloud, template, EMPTY);
+        assertEquals(2, ledger.getReserved());
+
+        released.release();
+        released.release();
+        released.commit();
+        assertEquals(1, ledger.getReserved());
+
+        committed.commit();
+        committed.commit();
+        committed.release();
+        assertEquals(0, ledger.getReserved());
+        assertEquals(0, ledger.getReserved(template));
+    }
+
+    @Test
+    public void createdServerIsCountedOnce() {
+        SlaveTemplate template = template("slave", 2);
+        Cloud cloud = cloud("created", 10, template);
+        CapacityLedger ledger = CapacityLedger.forCloud(cloud.getName());
+
+        CapacityLedger.Reservation reservation = ledger.tryReserve(cloud, template, EMPTY);
+        String serverName = ServerName.generateServerName(cloud.getName(), template.getName());
+        reservation.setServerName(serverName);
+
+        // the server shows up in the inventory while its reservation is still outstanding
+        ServerInventory inventory = new ServerInventory(Arrays.asList(server(serverName)));
+        assertNotNull(ledger.tryReserve(cloud, template, inventory));
+        assertNull(ledger.tryReserve(cloud, template, inventory));
+    }
+
+    @Test
+    public void addedNodeIsCountedOnce() {
+        SlaveTemplate template = template("slave", 2);
+        Cloud cloud = cloud("added", 10, template);
+        CapacityLedger ledger = CapacityLedger.forCloud(cloud.getName());
+
+        CapacityLedger.Reservation reservation = ledger.tryReserve(cloud, template, EMPTY);
+        String serverName = ServerName.generateServerName(cloud.getName(), template.getName());
+        reservation.setServerName(serverName);
+        NodeCountIndex.add(serverName);
+        try {
+            // the node was added, but the reservation not yet committed
+            CapacityLedger.Reservation second = ledger.tryReserve(cloud, template, EMPTY);
+            assertNotNull(second);
+            assertNull(ledger.tryReserve(cloud, template, EMPTY));
+
+            reservation.commit();
+            assertNull(ledger.tryReserve(cloud, template, EMPTY));
+
+            second.release();
+            assertNotNull(ledger.tryReserve(cloud, template, EMPTY));
+        } finally {
+            NodeCountIndex.remove(serverName);
+        }
+    }
+
+    private static Cloud cloud(String name, int instanceCap, SlaveTemplate... templates) {
+        return new Cloud(name, "token", null, null, String.valueOf(instanceCap), null, null, null, null, null,
+                Arrays.asList(templates));
+    }
+
+    private static SlaveTemplate template(String name, int instanceCap) {
+        return new SlaveTemplate(name, "appliance", "size", "root", "/jenkins", 22, "10", "1", name, false,
+                String.valueOf(instanceCap), null, null, null, null, false, null, null, null);
+    }
+
+    private static ServerResponse server(String name) {
+        Status status = new Status();
+        status.setState(Types.ServerState.POWERED_ON);
+        ServerResponse server = new ServerResponse();
+        server.setId(UUID.randomUUID().toString());
+        server.setName(name);
+        server.setStatus(status);
+        return server;
+    }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the billing boundary of {@link RetentionStrategy} with the default margin of five minutes.
+ */
+public class RetentionStrategyTest {
+
+    private static final long START = 1500000000000L;
+    private static final long MARGIN = TimeUnit.MINUTES.toMillis(5);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void withoutBillingPeriodAlwaysNear() {
+        assertTrue(RetentionStrategy.isNearBillingBoundary(START, START, 0));
+        assertTrue(RetentionStrategy.isNearBillingBoundary(START, START + 1, -60));
+        assertTrue(RetentionStrategy.isNearBillingBoundary(START, START + HOUR / 2, 0));
+    }
+
+    @Test
+    public void startInTheFutureIsAFreshPeriod() {
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START - 1, 60));
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START - HOUR + MARGIN, 60));
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START - 5 * HOUR, 60));
+    }
+
+    @Test
+    public void nearOnlyWithinTheMargin() {
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START, 60));
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START + HOUR - MARGIN - 1, 60));
+        assertTrue("exactly at the margin", RetentionStrategy.isNearBillingBoundary(START, START + HOUR - MARGIN, 60));
+        assertTrue(RetentionStrategy.isNearBillingBoundary(START, START + HOUR - 1, 60));
+        assertFalse("next period started", RetentionStrategy.isNearBillingBoundary(START, START + HOUR, 60));
+    }
+
+    @Test
+    public void nearInEveryElapsedPeriod() {
+        for (int periods = 1; periods <= 48; periods++) {
+            long boundary = START + periods * HOUR;
+            assertFalse(RetentionStrategy.isNearBillingBoundary(START, boundary - MARGIN - 1, 60));
+            assertTrue(RetentionStrategy.isNearBillingBoundary(START, boundary - MARGIN, 60));
+            assertFalse(RetentionStrategy.isNearBillingBoundary(START, boundary, 60));
+        }
+    }
+
+    @Test
+    public void shortPeriodUsesHalfThePeriodAsMargin() {
+        long period = TimeUnit.MINUTES.toMillis(6);
+        long margin = period / 2;
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START + period - margin - 1, 6));
+        assertTrue(RetentionStrategy.isNearBillingBoundary(START, START + period - margin, 6));
+        assertFalse(RetentionStrategy.isNearBillingBoundary(START, START + 3 * period + 1, 6));
+        assertTrue(RetentionStrategy.isNearBillingBoundary(START, START + 4 * period - 1, 6));
+    }
+}
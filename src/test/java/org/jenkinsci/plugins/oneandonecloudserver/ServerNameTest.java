@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the scanner of {@link ServerName} with the regular expression it replaced.
+ */
+public class ServerNameTest {
+
+    private static final Pattern SERVER_PATTERN = Pattern.compile("^jenkins-([a-zA-Z0-9\\.]+)-([a-zA-Z0-9\\.]+)-"
+            + "\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}$");
+
+    private static final String UUID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+    private static final String[] NAMES = {
+            "jenkins-cloud-slave-" + UUID,
+            "jenkins-c.1-S.2-" + UUID,
+            "jenkins-a-b-" + UUID.toUpperCase(),
+            "jenkins-a-b-0F8fAD5b-D9cb-469F-a165-70867728950E",
+            // empty cloud or template name
+            "jenkins--slave-" + UUID,
+            "jenkins-cloud--" + UUID,
+            "jenkins---" + UUID,
+            // '-' inside names makes them ambiguous, so they never match
+            "jenkins-my-cloud-slave-" + UUID,
+            "jenkins-cloud-my-slave-" + UUID,
+            // trailing or leading data
+            "jenkins-cloud-slave-" + UUID + "x",
+            "jenkins-cloud-slave-" + UUID + "-",
+            "jenkins-cloud-slave-" + UUID + "\n",
+            "xjenkins-cloud-slave-" + UUID,
+            " jenkins-cloud-slave-" + UUID,
+            // broken UUIDs
+            "jenkins-cloud-slave-" + UUID.substring(1),
+            "jenkins-cloud-slave-" + UUID.replace('-', '0'),
+            "jenkins-cloud-slave-0f8fad5g-d9cb-469f-a165-70867728950e",
+            "jenkins-cloud-slave-0f8fad5bd-9cb-469f-a165-70867728950e",
+            // non-ASCII
+            "jenkins-cl\u00f6ud-slave-" + UUID,
+            "jenkins-cloud-sl\u0430ve-" + UUID,
+            "jenkins-cloud-slave-0f8fad5b-d9cb-469f-a165-7086772895\u0660e",
+            "jenkins-\u00e9-\u00e9-" + UUID,
+            // other prefixes, clouds and servers
+            "Jenkins-cloud-slave-" + UUID,
+            "jenkins_cloud_slave_" + UUID,
+            "jenkins-other-slave-" + UUID,
+            "webserver-1",
+            "jenkins-cloud-slave",
+            "jenkins-",
+            "jenkins",
+            "",
+    };
+
+    @Test
+    public void parsesLikeTheRegularExpression() {
+        for (String name : NAMES) {
+            Matcher m = SERVER_PATTERN.matcher(name);
+            boolean matches = m.matches();
+            assertEquals(name, matches, ServerName.parse(name) >= 0);
+            assertEquals(name, matches ? m.group(1) : null, ServerName.getCloudName(name));
+            assertEquals(name, matches ? m.group(2) : null, ServerName.getSlaveName(name));
+
+            for (String cloudName : new String[]{"cloud", "c.1", "a", "other", "clou"}) {
+                assertEquals(name + " of " + cloudName, matches && m.group(1).equals(cloudName),
+                        ServerName.isServerInstanceOfCloud(name, cloudName));
+                for (String slaveName : new String[]{"slave", "S.2", "b", "slav"}) {
+                    assertEquals(name + " of " + cloudName + "/" + slaveName,
+                            matches && m.group(1).equals(cloudName) && m.group(2).equals(slaveName),
+                            ServerName.isServerInstanceOfSlave(name, cloudName, slaveName));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parsesGeneratedNames() {
+        String name = ServerName.generateServerName("cloud.1", "slave2");
+        assertTrue(SERVER_PATTERN.matcher(name).matches());
+        assertEquals("cloud.1", ServerName.getCloudName(name));
+        assertEquals("slave2", ServerName.getSlaveName(name));
+        assertTrue(ServerName.isServerInstanceOfSlave(name, "cloud.1", "slave2"));
+        assertFalse(ServerName.isServerInstanceOfSlave(name, "cloud.1", "slave"));
+        assertFalse(ServerName.isServerInstanceOfCloud(name, "cloud"));
+    }
+
+    @Test
+    public void staysCorrectWhenTheCacheIsCleared() {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 25000; i++) {
+            names.add(ServerName.generateServerName("c" + (i % 7), "s" + i));
+        }
+        names.add("webserver-1");
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < names.size() - 1; i++) {
+                String name = names.get(i);
+                assertEquals(name, "c" + (i % 7), ServerName.getCloudName(name));
+                assertEquals(name, "s" + i, ServerName.getSlaveName(name));
+            }
+            assertNull(ServerName.getCloudName("webserver-1"));
+        }
+    }
+}
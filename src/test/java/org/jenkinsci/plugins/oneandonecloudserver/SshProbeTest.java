@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.oneandonecloudserver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SshProbeTest {
+
+    private static final String HOST = "127.0.0.1";
+
+    @Test
+    public void closedPortIsRetriedUntilTheTimeout() throws Exception {
+        int port = closedPort();
+        int probes = 5;
+        final CountDownLatch done = new CountDownLatch(probes);
+        final AtomicInteger ready = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // several probes which are refused at the same time, each one put back for its next attempt right away
+        for (int i = 0; i < probes; i++) {
+            SshProbe.probe(HOST, port, 1500, new SshProbe.Listener() {
+                @Override
+                public void onResult(boolean r, int a) {
+                    if (r) {
+                        ready.incrementAndGet();
+                    }
+                    attempts.addAndGet(a);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue("every probe completes", done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, ready.get());
+        assertTrue("retried", attempts.get() > probes);
+    }
+
+    @Test
+    public void unresolvedHostCompletesRightAway() throws Exception {
+        Result result = new Result();
+        SshProbe.probe("no-such-host.invalid", 22, TimeUnit.MINUTES.toMillis(1), result);
+
+        assertTrue(result.done.await(10, TimeUnit.SECONDS));
+        assertFalse(result.ready.get());
+    }
+
+    @Test
+    public void bannerIsReady() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(HOST));
+        try {
+            Thread daemon = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Socket socket = server.accept();
+                        OutputStream out = socket.getOutputStream();
+                        out.write("SSH-2.0-test\r\n".getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        Thread.sleep(1000);
+                        socket.close();
+                    } catch (Exception e) {
+                        // the test fails on its timeout
+                    }
+                }
+            });
+            daemon.setDaemon(true);
+            daemon.start();
+
+            Result result = new Result();
+            SshProbe.probe(HOST, server.getLocalPort(), TimeUnit.SECONDS.toMillis(10), result);
+
+            assertTrue(result.done.await(10, TimeUnit.SECONDS));
+            assertTrue(result.ready.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static int closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static final class Result implements SshProbe.Listener {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean ready = new AtomicBoolean();
+
+        @Override
+        public void onResult(boolean r, int attempts) {
+            ready.set(r);
+            done.countDown();
+        }
+    }
+}